@@ -80,4 +80,2533 @@ class Chapter121ParallelProgrammingWithForkJoin {
 
     // Wait for the result
     int result = task.join();
+
+
+    //// 2026/10/18 //
+
+    // Primitive specializations of SummingTask
+
+    // The SummingTask above is fine for showing the shape of a fork/join problem, but it has two problems on big inputs:
+    // every numbers.get(i) in the leaf loop is an unboxing load through a pointer, and the int sum silently overflows
+    // once the total goes past Integer.MAX_VALUE. For large batches it is better to keep the numbers in a primitive array
+    // and accumulate into a long (or a double).
+
+    // The divide/fork/compute-right/join-left part is the same for every such task, so it can be written once. Extending
+    // RecursiveAction rather than RecursiveTask<Long> and keeping the partial result in a field means that nothing is
+    // boxed at join time either.
+    import java.util.Objects;
+    import java.util.concurrent.RecursiveAction;
+
+    public abstract class RangeTask<T extends RangeTask<T>> extends RecursiveAction {
+
+        protected final int minInclusive, maxExclusive;
+
+        // Set on the root task and handed down to every subtask when it is split off
+        private SplitPolicy splitPolicy = SplitPolicy.adaptive();
+        private int totalSize = -1;
+
+        // Only set when the task is profiled, see ForkJoinProfiler
+        private ForkJoinProfiler profiler;
+        private Thread forkedBy;
+
+        // Only set when the task can be cancelled, see CancellationToken
+        private CancellationToken cancellation;
+        private int coveredCount;
+
+        protected RangeTask(int minInclusive, int maxExclusive) {
+            this.minInclusive = minInclusive;
+            this.maxExclusive = maxExclusive;
+        }
+
+        // Only meant to be called on the root task, before it is submitted to a pool
+        @SuppressWarnings("unchecked")
+        public T withSplitPolicy(SplitPolicy splitPolicy) {
+            this.splitPolicy = Objects.requireNonNull(splitPolicy, "splitPolicy");
+            return (T) this;
+        }
+
+        // Only meant to be called on the root task, before it is submitted to a pool
+        @SuppressWarnings("unchecked")
+        public T withProfiler(ForkJoinProfiler profiler) {
+            this.profiler = profiler;
+            return (T) this;
+        }
+
+        // Only meant to be called on the root task, before it is submitted to a pool
+        @SuppressWarnings("unchecked")
+        public T withCancellation(CancellationToken cancellation) {
+            this.cancellation = cancellation;
+            return (T) this;
+        }
+
+        // The number of elements whose result is included in this task's result. Once the task has completed this is
+        // the size of its range, unless it was cancelled part way through.
+        public int getCoveredCount() {
+            return coveredCount;
+        }
+
+        public boolean isComplete() {
+            return coveredCount == maxExclusive - minInclusive;
+        }
+
+        // Creates the task for one half of the range
+        protected abstract T subtask(int minInclusive, int maxExclusive);
+
+        // Processes [minInclusive, maxExclusive) on the current thread
+        protected abstract void computeLeaf();
+
+        // Stores the combination of the two halves in this task
+        protected abstract void combine(T left, T right);
+
+        // Called instead of computeLeaf() or splitting when the task has been cancelled. It must leave the result in a
+        // state that combine() treats as empty; the default does nothing, which is enough for tasks whose result
+        // fields already start out as the identity.
+        protected void computeSkipped() {
+        }
+
+        @Override
+        protected final void compute() {
+            int size = maxExclusive - minInclusive;
+            if (totalSize < 0) {
+                // This is the root task
+                totalSize = size;
+            }
+
+            // Checked once per task, so a cancelled tree stops splitting and every task that has not started yet
+            // returns straight away
+            if (cancellation != null && cancellation.isCancelled()) {
+                computeSkipped();
+                return;
+            }
+
+            if (profiler != null) {
+                computeProfiled(size);
+                return;
+            }
+
+            if (splitPolicy.shouldSplit(size, totalSize)) {
+                int mid = (minInclusive + maxExclusive) >>> 1;
+                T leftTask = subtask(minInclusive, mid);
+                T rightTask = subtask(mid, maxExclusive);
+                adopt(leftTask);
+                adopt(rightTask);
+
+                leftTask.fork();
+                rightTask.compute();
+                leftTask.join();
+
+                combineHalves(leftTask, rightTask);
+            } else {
+                computeLeaf();
+                coveredCount = size;
+            }
+        }
+
+        // The same steps as compute(), with timings recorded for the current worker thread
+        private void computeProfiled(int size) {
+            ForkJoinProfiler.WorkerStats stats = profiler.taskStarted(forkedBy);
+
+            if (splitPolicy.shouldSplit(size, totalSize)) {
+                long splitStart = System.nanoTime();
+                int mid = (minInclusive + maxExclusive) >>> 1;
+                T leftTask = subtask(minInclusive, mid);
+                T rightTask = subtask(mid, maxExclusive);
+                adopt(leftTask);
+                adopt(rightTask);
+
+                leftTask.fork();
+                stats.splitNanos += System.nanoTime() - splitStart;
+
+                rightTask.compute();
+
+                if (leftTask.isDone()) {
+                    leftTask.join();
+                } else {
+                    long joinStart = System.nanoTime();
+                    leftTask.join();
+                    stats.joinNanos += System.nanoTime() - joinStart;
+                }
+
+                long combineStart = System.nanoTime();
+                combineHalves(leftTask, rightTask);
+                stats.splitNanos += System.nanoTime() - combineStart;
+            } else {
+                long leafStart = System.nanoTime();
+                computeLeaf();
+                stats.leafNanos += System.nanoTime() - leafStart;
+                stats.leaves++;
+                coveredCount = size;
+            }
+        }
+
+        private void combineHalves(T leftTask, T rightTask) {
+            combine(leftTask, rightTask);
+            coveredCount = ((RangeTask<?>) leftTask).coveredCount + ((RangeTask<?>) rightTask).coveredCount;
+        }
+
+        private void adopt(RangeTask<?> child) {
+            child.splitPolicy = splitPolicy;
+            child.totalSize = totalSize;
+            child.cancellation = cancellation;
+            if (profiler != null) {
+                child.profiler = profiler;
+                child.forkedBy = Thread.currentThread();
+            }
+        }
+    }
+
+    // Choosing the batch size
+
+    // The SummingTask divides whenever a range is bigger than MAX_BATCH_SIZE = 10. On a big input that creates millions
+    // of tiny tasks, and the cost of forking and joining them swamps the few additions each one does. On the other hand
+    // a batch size that is too big leaves some threads without work at the end. A good leaf size depends on how big the
+    // input is, how many threads the pool has and how busy they currently are, so RangeTask asks a SplitPolicy instead
+    // of comparing against a constant.
+    public interface SplitPolicy {
+
+        // Returns true if a range of rangeSize elements, out of totalSize in the whole problem, should be divided
+        // rather than computed as a single batch. Called on a worker thread of the pool that runs the task.
+        boolean shouldSplit(int rangeSize, int totalSize);
+
+        // The behaviour of the original SummingTask
+        static SplitPolicy fixed(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+            }
+            return (rangeSize, totalSize) -> rangeSize > maxBatchSize;
+        }
+
+        static SplitPolicy adaptive() {
+            return AdaptiveSplitPolicy.DEFAULT;
+        }
+    }
+
+    // The adaptive policy aims for a few leaves per thread (so that work stealing can even out leaves that run slower
+    // than others), but never goes below a minimum leaf size that is still worth forking. Between the two it keeps
+    // splitting only while the current thread has few tasks queued up that other threads could steal: if
+    // getSurplusQueuedTaskCount() is already high, the other threads are busy and splitting further would only add
+    // overhead.
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.ForkJoinTask;
+    import java.util.function.IntConsumer;
+
+    public final class AdaptiveSplitPolicy implements SplitPolicy {
+
+        static final AdaptiveSplitPolicy DEFAULT = new AdaptiveSplitPolicy(4096, 8, 3);
+
+        private final int minLeafSize;
+        private final int leavesPerThread;
+        private final int maxSurplusTasks;
+
+        public AdaptiveSplitPolicy(int minLeafSize, int leavesPerThread, int maxSurplusTasks) {
+            if (minLeafSize < 1 || leavesPerThread < 1 || maxSurplusTasks < 0) {
+                throw new IllegalArgumentException("minLeafSize=" + minLeafSize + ", leavesPerThread="
+                        + leavesPerThread + ", maxSurplusTasks=" + maxSurplusTasks);
+            }
+            this.minLeafSize = minLeafSize;
+            this.leavesPerThread = leavesPerThread;
+            this.maxSurplusTasks = maxSurplusTasks;
+        }
+
+        public int getMinLeafSize() {
+            return minLeafSize;
+        }
+
+        @Override
+        public boolean shouldSplit(int rangeSize, int totalSize) {
+            if (rangeSize <= minLeafSize) {
+                return false;
+            }
+            ForkJoinPool pool = ForkJoinTask.getPool();
+            int parallelism = pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+            long targetLeafSize = Math.max(minLeafSize, totalSize / ((long) parallelism * leavesPerThread));
+            if (rangeSize > targetLeafSize) {
+                return true;
+            }
+            return ForkJoinTask.getSurplusQueuedTaskCount() <= maxSurplusTasks;
+        }
+
+        // Calibration
+
+        // What minLeafSize should be depends on how expensive one element is, which is different for an int sum, a
+        // histogram or a variance. calibrate() times a sample leaf once, typically at startup, and picks the smallest
+        // leaf size that keeps a leaf busy for about targetLeafNanos. sampleLeaf.accept(n) must process n elements the
+        // way a real leaf would, for example by summing the first n elements of a scratch array.
+        public static AdaptiveSplitPolicy calibrate(IntConsumer sampleLeaf, int sampleSize, long targetLeafNanos) {
+            if (sampleSize < 1 || targetLeafNanos < 1) {
+                throw new IllegalArgumentException("sampleSize=" + sampleSize + ", targetLeafNanos=" + targetLeafNanos);
+            }
+
+            // Let the JIT compile the leaf before timing it
+            for (int i = 0; i < 20; i++) {
+                sampleLeaf.accept(sampleSize);
+            }
+
+            // Take the fastest of several runs, the slower ones were disturbed by GC or other threads
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < 10; i++) {
+                long start = System.nanoTime();
+                sampleLeaf.accept(sampleSize);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+
+            double nanosPerElement = Math.max(bestNanos, 1) / (double) sampleSize;
+            long minLeafSize = (long) (targetLeafNanos / nanosPerElement);
+            return new AdaptiveSplitPolicy((int) Math.max(1, Math.min(minLeafSize, 1 << 20)), DEFAULT.leavesPerThread,
+                    DEFAULT.maxSurplusTasks);
+        }
+    }
+
+    // The int version can never overflow: an array has fewer than 2^31 elements, each of which is smaller than 2^31 in
+    // magnitude, so the total always fits in a long. The offset/length constructor sums a slice without copying it.
+    public class IntArraySummingTask extends RangeTask<IntArraySummingTask> {
+
+        private final int[] numbers;
+        private long sum;
+
+        public IntArraySummingTask(int[] numbers) {
+            this(numbers, 0, numbers.length);
+        }
+
+        public IntArraySummingTask(int[] numbers, int offset, int length) {
+            super(offset, Objects.checkFromIndexSize(offset, length, numbers.length) + length);
+            this.numbers = numbers;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        @Override
+        protected IntArraySummingTask subtask(int minInclusive, int maxExclusive) {
+            return new IntArraySummingTask(numbers, minInclusive, maxExclusive - minInclusive);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            sum = LeafKernels.sum(numbers, minInclusive, maxExclusive);
+        }
+
+        @Override
+        protected void combine(IntArraySummingTask left, IntArraySummingTask right) {
+            sum = left.sum + right.sum;
+        }
+    }
+
+    // A sum of longs can overflow a long, so here we use Math.addExact, which throws an ArithmeticException instead of
+    // quietly wrapping around. The exception is rethrown by join() (and by invoke() on the root task).
+    public class LongArraySummingTask extends RangeTask<LongArraySummingTask> {
+
+        private final long[] numbers;
+        private long sum;
+
+        public LongArraySummingTask(long[] numbers) {
+            this(numbers, 0, numbers.length);
+        }
+
+        public LongArraySummingTask(long[] numbers, int offset, int length) {
+            super(offset, Objects.checkFromIndexSize(offset, length, numbers.length) + length);
+            this.numbers = numbers;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        @Override
+        protected LongArraySummingTask subtask(int minInclusive, int maxExclusive) {
+            return new LongArraySummingTask(numbers, minInclusive, maxExclusive - minInclusive);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            long sum = 0;
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                sum = Math.addExact(sum, numbers[i]);
+            }
+            this.sum = sum;
+        }
+
+        @Override
+        protected void combine(LongArraySummingTask left, LongArraySummingTask right) {
+            sum = Math.addExact(left.sum, right.sum);
+        }
+    }
+
+    public class DoubleArraySummingTask extends RangeTask<DoubleArraySummingTask> {
+
+        private final double[] numbers;
+        private double sum;
+
+        public DoubleArraySummingTask(double[] numbers) {
+            this(numbers, 0, numbers.length);
+        }
+
+        public DoubleArraySummingTask(double[] numbers, int offset, int length) {
+            super(offset, Objects.checkFromIndexSize(offset, length, numbers.length) + length);
+            this.numbers = numbers;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        @Override
+        protected DoubleArraySummingTask subtask(int minInclusive, int maxExclusive) {
+            return new DoubleArraySummingTask(numbers, minInclusive, maxExclusive - minInclusive);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            sum = LeafKernels.sum(numbers, minInclusive, maxExclusive);
+        }
+
+        @Override
+        protected void combine(DoubleArraySummingTask left, DoubleArraySummingTask right) {
+            sum = left.sum + right.sum;
+        }
+    }
+
+    // A List<Integer> can still be summed this way. It is unboxed once into an int[] and then handed to the primitive
+    // task, so the leaves never touch an Integer and the result is a long:
+    public static long sum(ForkJoinPool pool, List<Integer> numbers) {
+        int[] primitives = numbers.stream().mapToInt(Integer::intValue).toArray();
+        IntArraySummingTask task = new IntArraySummingTask(primitives);
+        pool.invoke(task);
+        return task.getSum();
+    }
+
+    // The primitive tasks are used like the SummingTask, except that the result is read from the task after it completes:
+    IntArraySummingTask intTask = new IntArraySummingTask(primitiveNumbers);
+    pool.invoke(intTask);
+    long total = intTask.getSum();
+
+    // Sum only the second half of the array
+    LongArraySummingTask sliceTask = new LongArraySummingTask(longNumbers, longNumbers.length / 2,
+            longNumbers.length - longNumbers.length / 2);
+    pool.invoke(sliceTask);
+    long sliceTotal = sliceTask.getSum();
+
+    // Unless told otherwise every RangeTask uses the adaptive policy. To calibrate it for a particular kind of leaf, time
+    // a sample leaf once at startup and pass the resulting policy to the root task:
+    int[] scratch = new int[1 << 16];
+    long[] sink = new long[1];
+    AdaptiveSplitPolicy calibrated = AdaptiveSplitPolicy.calibrate(n -> {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += scratch[i];
+        }
+        sink[0] += sum; // keeps the JIT from removing the loop
+    }, scratch.length, 50_000);
+
+    pool.invoke(new IntArraySummingTask(primitiveNumbers).withSplitPolicy(calibrated));
+
+    // Or reproduce the original behaviour, to compare
+    pool.invoke(new IntArraySummingTask(primitiveNumbers).withSplitPolicy(SplitPolicy.fixed(10)));
+
+
+    // Reductions other than sums
+
+    // Nothing in the divide/fork/compute-right/join-left shape is specific to addition. Any reduction works the same way
+    // as long as it has an identity (the result for an empty batch), a way to fold one element into a partial result,
+    // and an associative way to combine two partial results. Associativity is what allows the pool to combine the
+    // batches in whatever grouping the splits produce; the order of the batches is still kept, so the combiner does not
+    // have to be commutative.
+
+    // The identity is a Supplier so that each leaf can start from its own fresh, possibly mutable, accumulator.
+    import java.util.function.BiFunction;
+    import java.util.function.BinaryOperator;
+    import java.util.function.Supplier;
+
+    public class ParallelReduceTask<T, A> extends RangeTask<ParallelReduceTask<T, A>> {
+
+        private final List<? extends T> elements;
+        private final Supplier<A> identity;
+        private final BiFunction<A, ? super T, A> accumulator;
+        private final BinaryOperator<A> combiner;
+        private A result;
+
+        // elements should be a random-access list such as an ArrayList
+        public ParallelReduceTask(List<? extends T> elements, Supplier<A> identity,
+                BiFunction<A, ? super T, A> accumulator, BinaryOperator<A> combiner) {
+            this(elements, 0, elements.size(), identity, accumulator, combiner);
+        }
+
+        private ParallelReduceTask(List<? extends T> elements, int minInclusive, int maxExclusive, Supplier<A> identity,
+                BiFunction<A, ? super T, A> accumulator, BinaryOperator<A> combiner) {
+            super(minInclusive, maxExclusive);
+            this.elements = elements;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        public A getResult() {
+            return result;
+        }
+
+        @Override
+        protected ParallelReduceTask<T, A> subtask(int minInclusive, int maxExclusive) {
+            return new ParallelReduceTask<>(elements, minInclusive, maxExclusive, identity, accumulator, combiner);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            A result = identity.get();
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                result = accumulator.apply(result, elements.get(i));
+            }
+            this.result = result;
+        }
+
+        @Override
+        protected void combine(ParallelReduceTask<T, A> left, ParallelReduceTask<T, A> right) {
+            result = combiner.apply(left.result, right.result);
+        }
+
+        @Override
+        protected void computeSkipped() {
+            result = identity.get();
+        }
+    }
+
+    // The generic task boxes, just like the SummingTask. For statistics over an int[] whose result is a single long
+    // (minimum, maximum, count, sum of squares, ...) there is a primitive version, with ready-made factories for the
+    // common ones. The JDK has no (long, int) -> long functional interface, so it gets its own.
+    import java.util.function.IntPredicate;
+    import java.util.function.LongBinaryOperator;
+
+    public class IntToLongReduceTask extends RangeTask<IntToLongReduceTask> {
+
+        @FunctionalInterface
+        public interface LongIntAccumulator {
+            long accumulate(long result, int value);
+        }
+
+        private final int[] numbers;
+        private final long identity;
+        private final LongIntAccumulator accumulator;
+        private final LongBinaryOperator combiner;
+        private long result;
+
+        public IntToLongReduceTask(int[] numbers, long identity, LongIntAccumulator accumulator,
+                LongBinaryOperator combiner) {
+            this(numbers, 0, numbers.length, identity, accumulator, combiner);
+        }
+
+        public IntToLongReduceTask(int[] numbers, int offset, int length, long identity, LongIntAccumulator accumulator,
+                LongBinaryOperator combiner) {
+            super(offset, Objects.checkFromIndexSize(offset, length, numbers.length) + length);
+            this.numbers = numbers;
+            this.identity = identity;
+            this.accumulator = Objects.requireNonNull(accumulator, "accumulator");
+            this.combiner = Objects.requireNonNull(combiner, "combiner");
+        }
+
+        // The minimum of an empty array is Long.MAX_VALUE, and the maximum Long.MIN_VALUE
+        public static IntToLongReduceTask min(int[] numbers) {
+            return new IntToLongReduceTask(numbers, Long.MAX_VALUE, Math::min, Math::min);
+        }
+
+        public static IntToLongReduceTask max(int[] numbers) {
+            return new IntToLongReduceTask(numbers, Long.MIN_VALUE, Math::max, Math::max);
+        }
+
+        public static IntToLongReduceTask count(int[] numbers, IntPredicate predicate) {
+            return new IntToLongReduceTask(numbers, 0, (count, value) -> predicate.test(value) ? count + 1 : count,
+                    Long::sum);
+        }
+
+        // Each square fits in a long, but their sum may not, so this one checks for overflow
+        public static IntToLongReduceTask sumOfSquares(int[] numbers) {
+            return new IntToLongReduceTask(numbers, 0, (sum, value) -> Math.addExact(sum, (long) value * value),
+                    Math::addExact);
+        }
+
+        public long getResult() {
+            return result;
+        }
+
+        @Override
+        protected IntToLongReduceTask subtask(int minInclusive, int maxExclusive) {
+            return new IntToLongReduceTask(numbers, minInclusive, maxExclusive - minInclusive, identity, accumulator,
+                    combiner);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            long result = identity;
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                result = accumulator.accumulate(result, numbers[i]);
+            }
+            this.result = result;
+        }
+
+        @Override
+        protected void combine(IntToLongReduceTask left, IntToLongReduceTask right) {
+            result = combiner.applyAsLong(left.result, right.result);
+        }
+
+        @Override
+        protected void computeSkipped() {
+            result = identity;
+        }
+    }
+
+    // A histogram is a reduction too: the identity is an array of zero counts, a leaf counts into its own array, and two
+    // histograms are combined by adding them bucket by bucket. Values below the first bucket are counted in the first
+    // bucket and values past the last one in the last bucket.
+    public class IntHistogramTask extends RangeTask<IntHistogramTask> {
+
+        private final int[] numbers;
+        private final int lowestValue;
+        private final int bucketWidth;
+        private final int bucketCount;
+        private long[] counts;
+
+        public IntHistogramTask(int[] numbers, int lowestValue, int bucketWidth, int bucketCount) {
+            this(numbers, 0, numbers.length, lowestValue, bucketWidth, bucketCount);
+        }
+
+        private IntHistogramTask(int[] numbers, int minInclusive, int maxExclusive, int lowestValue, int bucketWidth,
+                int bucketCount) {
+            super(minInclusive, maxExclusive);
+            if (bucketWidth < 1 || bucketCount < 1) {
+                throw new IllegalArgumentException("bucketWidth=" + bucketWidth + ", bucketCount=" + bucketCount);
+            }
+            this.numbers = numbers;
+            this.lowestValue = lowestValue;
+            this.bucketWidth = bucketWidth;
+            this.bucketCount = bucketCount;
+        }
+
+        public long[] getCounts() {
+            return counts;
+        }
+
+        @Override
+        protected IntHistogramTask subtask(int minInclusive, int maxExclusive) {
+            return new IntHistogramTask(numbers, minInclusive, maxExclusive, lowestValue, bucketWidth, bucketCount);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            long[] counts = new long[bucketCount];
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                long bucket = ((long) numbers[i] - lowestValue) / bucketWidth;
+                counts[(int) Math.max(0, Math.min(bucket, bucketCount - 1))]++;
+            }
+            this.counts = counts;
+        }
+
+        @Override
+        protected void combine(IntHistogramTask left, IntHistogramTask right) {
+            // Reuse the left array rather than allocating a third one
+            long[] counts = left.counts;
+            for (int i = 0; i < bucketCount; i++) {
+                counts[i] += right.counts[i];
+            }
+            this.counts = counts;
+        }
+
+        @Override
+        protected void computeSkipped() {
+            counts = new long[bucketCount];
+        }
+    }
+
+    // Each of these tasks is one sweep over the data. When several statistics are needed from the same batch, put them in
+    // one accumulator and reduce once, rather than running one task per statistic:
+    ParallelReduceTask<Order, long[]> stats = new ParallelReduceTask<>(orders,
+            () -> new long[] { 0, Long.MAX_VALUE, Long.MIN_VALUE }, // { total, cheapest, most expensive }
+            (acc, order) -> {
+                acc[0] += order.getPrice();
+                acc[1] = Math.min(acc[1], order.getPrice());
+                acc[2] = Math.max(acc[2], order.getPrice());
+                return acc;
+            },
+            (left, right) -> new long[] {
+                left[0] + right[0], Math.min(left[1], right[1]), Math.max(left[2], right[2])
+            });
+    pool.invoke(stats);
+    long[] orderStats = stats.getResult();
+
+    IntToLongReduceTask largest = IntToLongReduceTask.max(primitiveNumbers);
+    pool.invoke(largest);
+    long max = largest.getResult();
+
+    IntHistogramTask histogram = new IntHistogramTask(latenciesMillis, 0, 10, 100); // 0-9ms, 10-19ms, ...
+    pool.invoke(histogram);
+    long[] latencyCounts = histogram.getCounts();
+
+
+    // Several statistics in one pass
+
+    // Running a separate task for the sum, the extremes and the variance reads the whole array once per statistic. The
+    // reads are the expensive part on a big array, so it is cheaper to compute all of them in the same leaf loop and
+    // merge small records at join time.
+
+    // The variance is the tricky one. The textbook formula (sum of squares / n - mean^2) subtracts two large, nearly equal
+    // numbers and loses most of its precision. Instead each leaf uses Welford's update, which keeps a running mean and
+    // the sum of squared differences from it (m2), and two partial results are merged with Chan's formula:
+    // delta = meanB - meanA
+    // mean = meanA + delta * nB / n
+    // m2 = m2A + m2B + delta^2 * nA * nB / n
+    public final class Statistics {
+
+        public static final Statistics EMPTY = new Statistics(0, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0, 0);
+
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+        private final double mean;
+        private final double m2;
+
+        private Statistics(long count, long sum, long min, long max, double mean, double m2) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.m2 = m2;
+        }
+
+        public static Statistics merge(Statistics a, Statistics b) {
+            if (a.count == 0) {
+                return b;
+            }
+            if (b.count == 0) {
+                return a;
+            }
+            long count = a.count + b.count;
+            double delta = b.mean - a.mean;
+            double mean = a.mean + delta * b.count / count;
+            double m2 = a.m2 + b.m2 + delta * delta * ((double) a.count * b.count / count);
+            return new Statistics(count, Math.addExact(a.sum, b.sum), Math.min(a.min, b.min), Math.max(a.max, b.max),
+                    mean, m2);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count > 0 ? mean : Double.NaN;
+        }
+
+        // Divides by n, use getSampleVariance() to divide by n - 1
+        public double getVariance() {
+            return count > 0 ? m2 / count : Double.NaN;
+        }
+
+        public double getSampleVariance() {
+            return count > 1 ? m2 / (count - 1) : Double.NaN;
+        }
+
+        public double getStandardDeviation() {
+            return Math.sqrt(getVariance());
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + ", mean="
+                    + getMean() + ", variance=" + getVariance() + "}";
+        }
+    }
+
+    // The leaf keeps everything in local primitives and allocates a single Statistics at the end, so the only objects
+    // created are one small record per task.
+    public class IntStatisticsTask extends RangeTask<IntStatisticsTask> {
+
+        private final int[] numbers;
+        private Statistics statistics = Statistics.EMPTY;
+
+        public IntStatisticsTask(int[] numbers) {
+            this(numbers, 0, numbers.length);
+        }
+
+        public IntStatisticsTask(int[] numbers, int offset, int length) {
+            super(offset, Objects.checkFromIndexSize(offset, length, numbers.length) + length);
+            this.numbers = numbers;
+        }
+
+        public Statistics getStatistics() {
+            return statistics;
+        }
+
+        @Override
+        protected IntStatisticsTask subtask(int minInclusive, int maxExclusive) {
+            return new IntStatisticsTask(numbers, minInclusive, maxExclusive - minInclusive);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            if (minInclusive == maxExclusive) {
+                return;
+            }
+            long sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            double mean = 0;
+            double m2 = 0;
+            long count = 0;
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                int value = numbers[i];
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+
+                count++;
+                double delta = value - mean;
+                mean += delta / count;
+                m2 += delta * (value - mean);
+            }
+            statistics = new Statistics(count, sum, min, max, mean, m2);
+        }
+
+        @Override
+        protected void combine(IntStatisticsTask left, IntStatisticsTask right) {
+            statistics = Statistics.merge(left.statistics, right.statistics);
+        }
+    }
+
+    IntStatisticsTask statisticsTask = new IntStatisticsTask(primitiveNumbers);
+    pool.invoke(statisticsTask);
+    Statistics batchStatistics = statisticsTask.getStatistics();
+    System.out.println(batchStatistics.getMean() + " +/- " + batchStatistics.getStandardDeviation());
+
+
+    // Running totals (prefix sums)
+
+    // Sometimes the running totals are needed as well as the grand total: out[i] = in[0] + in[1] + ... + in[i]. This
+    // looks sequential, since every element depends on the one before it, but it can be done in parallel in two passes
+    // over the same tree of ranges:
+    // 1. Up-sweep: a RangeTask computes the total of every range, exactly like the summing tasks, but keeps the subtasks
+    //    so the tree of partial totals is still there afterwards.
+    // 2. Down-sweep: walking the same tree from the root, each range is given the total of everything to its left. The
+    //    left half gets the same offset as its parent, the right half gets the parent's offset plus the left half's
+    //    total. A leaf then does an ordinary sequential scan starting from its offset.
+    // Each element is read twice and written once, and both passes are fully parallel.
+
+    // Any associative operator can be used instead of addition (max for running maxima, for example), together with its
+    // identity. in and out may be the same array, in which case the scan is done in place.
+    public final class LongPrefixScan {
+
+        private LongPrefixScan() {
+        }
+
+        public static void scan(ForkJoinPool pool, long[] in, long[] out) {
+            scan(pool, in, out, 0, Long::sum, SplitPolicy.adaptive());
+        }
+
+        public static void scan(ForkJoinPool pool, long[] in, long[] out, long identity, LongBinaryOperator operator,
+                SplitPolicy splitPolicy) {
+            if (out.length < in.length) {
+                throw new IllegalArgumentException("out is shorter than in: " + out.length + " < " + in.length);
+            }
+            UpSweepTask root = new UpSweepTask(in, 0, in.length, identity, operator).withSplitPolicy(splitPolicy);
+            pool.invoke(root);
+            pool.invoke(new DownSweepTask(root, out, identity));
+        }
+
+        private static final class UpSweepTask extends RangeTask<UpSweepTask> {
+
+            private final long[] in;
+            private final long identity;
+            private final LongBinaryOperator operator;
+            private long total;
+
+            // Null for a leaf
+            private UpSweepTask left, right;
+
+            UpSweepTask(long[] in, int minInclusive, int maxExclusive, long identity, LongBinaryOperator operator) {
+                super(minInclusive, maxExclusive);
+                this.in = in;
+                this.identity = identity;
+                this.operator = operator;
+            }
+
+            @Override
+            protected UpSweepTask subtask(int minInclusive, int maxExclusive) {
+                return new UpSweepTask(in, minInclusive, maxExclusive, identity, operator);
+            }
+
+            @Override
+            protected void computeLeaf() {
+                long total = identity;
+                for (int i = minInclusive; i < maxExclusive; i++) {
+                    total = operator.applyAsLong(total, in[i]);
+                }
+                this.total = total;
+            }
+
+            @Override
+            protected void combine(UpSweepTask left, UpSweepTask right) {
+                this.left = left;
+                this.right = right;
+                total = operator.applyAsLong(left.total, right.total);
+            }
+
+            @Override
+            protected void computeSkipped() {
+                total = identity;
+            }
+        }
+
+        private static final class DownSweepTask extends RecursiveAction {
+
+            private final UpSweepTask node;
+            private final long[] out;
+            private final long offset;
+
+            DownSweepTask(UpSweepTask node, long[] out, long offset) {
+                this.node = node;
+                this.out = out;
+                this.offset = offset;
+            }
+
+            @Override
+            protected void compute() {
+                if (node.left == null) {
+                    long[] in = node.in;
+                    LongBinaryOperator operator = node.operator;
+                    long running = offset;
+                    for (int i = node.minInclusive; i < node.maxExclusive; i++) {
+                        running = operator.applyAsLong(running, in[i]);
+                        out[i] = running;
+                    }
+                } else {
+                    DownSweepTask leftTask = new DownSweepTask(node.left, out, offset);
+                    DownSweepTask rightTask = new DownSweepTask(node.right, out,
+                            node.operator.applyAsLong(offset, node.left.total));
+
+                    leftTask.fork();
+                    rightTask.compute();
+                    leftTask.join();
+                }
+            }
+        }
+    }
+
+    long[] dailyRevenue = loadDailyRevenue();
+    long[] cumulativeRevenue = new long[dailyRevenue.length];
+    LongPrefixScan.scan(pool, dailyRevenue, cumulativeRevenue);
+
+    // In place, running maximum
+    LongPrefixScan.scan(pool, samples, samples, Long.MIN_VALUE, Math::max, SplitPolicy.adaptive());
+
+
+    // Looking inside the pool
+
+    // A ForkJoinPool does not say much about how a task tree was executed: whether the splits were balanced, how often
+    // threads had to steal work, or how long they sat in join(). Calling withProfiler() on the root RangeTask makes every
+    // task in the tree record the following for the worker thread that runs it:
+    // * tasks: the number of tasks it executed, and how many of those were leaves
+    // * steals: tasks that were forked by one thread and executed by another
+    // * leaf time: time spent in computeLeaf(), the useful work
+    // * split time: time spent creating, forking and combining subtasks, the overhead
+    // * join time: time spent in join() on a forked half that was not finished yet. This includes any other tasks the
+    //   thread ran while it waited, so it overlaps with the leaf time of those tasks
+    // * queue depth: getQueuedTaskCount() sampled every time a task starts
+    // Without a profiler RangeTask takes the original code path, so the instrumentation costs nothing when it is off.
+
+    // Lots of leaf time on one thread and little on the others means the splits are uneven; a high ratio of split time
+    // to leaf time means the leaves are too small; many steals with deep queues means the pool is busy enough that the
+    // split policy can stop splitting earlier.
+
+    // The counters of a thread are only written by that thread. They are volatile so that snapshots taken while a task
+    // is running see recent values, and they are exact once the root task has completed.
+    import java.time.Duration;
+    import java.util.ArrayList;
+    import java.util.Collections;
+    import java.util.Queue;
+    import java.util.concurrent.ConcurrentLinkedQueue;
+    import java.util.concurrent.ScheduledExecutorService;
+    import java.util.concurrent.ScheduledFuture;
+    import java.util.concurrent.TimeUnit;
+    import java.util.function.Consumer;
+
+    public final class ForkJoinProfiler {
+
+        private final Queue<WorkerStats> workers = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<WorkerStats> currentWorker = ThreadLocal.withInitial(this::register);
+
+        private WorkerStats register() {
+            WorkerStats stats = new WorkerStats(Thread.currentThread().getName());
+            workers.add(stats);
+            return stats;
+        }
+
+        // Called at the start of every profiled task, on the thread that runs it
+        WorkerStats taskStarted(Thread forkedBy) {
+            WorkerStats stats = currentWorker.get();
+            stats.tasks++;
+            if (forkedBy != null && forkedBy != Thread.currentThread()) {
+                stats.steals++;
+            }
+            int queueDepth = ForkJoinTask.getQueuedTaskCount();
+            stats.queueDepthSamples++;
+            stats.queueDepthTotal += queueDepth;
+            if (queueDepth > stats.maxQueueDepth) {
+                stats.maxQueueDepth = queueDepth;
+            }
+            return stats;
+        }
+
+        public List<WorkerSnapshot> snapshot() {
+            List<WorkerSnapshot> snapshot = new ArrayList<>();
+            for (WorkerStats stats : workers) {
+                snapshot.add(new WorkerSnapshot(stats));
+            }
+            return Collections.unmodifiableList(snapshot);
+        }
+
+        public String report() {
+            StringBuilder report = new StringBuilder(String.format("%-32s %10s %8s %8s %12s %12s %12s %8s %6s%n",
+                    "worker", "tasks", "leaves", "steals", "leaf ms", "split ms", "join ms", "avg q", "max q"));
+            long totalTasks = 0, totalLeafNanos = 0, totalSplitNanos = 0;
+            for (WorkerSnapshot worker : snapshot()) {
+                report.append(String.format("%-32s %10d %8d %8d %12.3f %12.3f %12.3f %8.2f %6d%n",
+                        worker.getThreadName(), worker.getTasks(), worker.getLeaves(), worker.getSteals(),
+                        worker.getLeafNanos() / 1e6, worker.getSplitNanos() / 1e6, worker.getJoinNanos() / 1e6,
+                        worker.getAverageQueueDepth(), worker.getMaxQueueDepth()));
+                totalTasks += worker.getTasks();
+                totalLeafNanos += worker.getLeafNanos();
+                totalSplitNanos += worker.getSplitNanos();
+            }
+            report.append(String.format("total: %d tasks, split/leaf time ratio %.4f%n", totalTasks,
+                    totalLeafNanos == 0 ? 0.0 : (double) totalSplitNanos / totalLeafNanos));
+            return report.toString();
+        }
+
+        // Writes report() to the given consumer at a fixed rate until the returned future is cancelled
+        public ScheduledFuture<?> reportPeriodically(ScheduledExecutorService scheduler, Duration period,
+                Consumer<String> output) {
+            long periodNanos = period.toNanos();
+            return scheduler.scheduleAtFixedRate(() -> output.accept(report()), periodNanos, periodNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        static final class WorkerStats {
+
+            final String threadName;
+            volatile long tasks, leaves, steals;
+            volatile long leafNanos, splitNanos, joinNanos;
+            volatile long queueDepthSamples, queueDepthTotal;
+            volatile int maxQueueDepth;
+
+            WorkerStats(String threadName) {
+                this.threadName = threadName;
+            }
+        }
+
+        public static final class WorkerSnapshot {
+
+            private final String threadName;
+            private final long tasks, leaves, steals;
+            private final long leafNanos, splitNanos, joinNanos;
+            private final long queueDepthSamples, queueDepthTotal;
+            private final int maxQueueDepth;
+
+            private WorkerSnapshot(WorkerStats stats) {
+                threadName = stats.threadName;
+                tasks = stats.tasks;
+                leaves = stats.leaves;
+                steals = stats.steals;
+                leafNanos = stats.leafNanos;
+                splitNanos = stats.splitNanos;
+                joinNanos = stats.joinNanos;
+                queueDepthSamples = stats.queueDepthSamples;
+                queueDepthTotal = stats.queueDepthTotal;
+                maxQueueDepth = stats.maxQueueDepth;
+            }
+
+            public String getThreadName() {
+                return threadName;
+            }
+
+            public long getTasks() {
+                return tasks;
+            }
+
+            public long getLeaves() {
+                return leaves;
+            }
+
+            public long getSteals() {
+                return steals;
+            }
+
+            public long getLeafNanos() {
+                return leafNanos;
+            }
+
+            public long getSplitNanos() {
+                return splitNanos;
+            }
+
+            public long getJoinNanos() {
+                return joinNanos;
+            }
+
+            public double getAverageQueueDepth() {
+                return queueDepthSamples == 0 ? 0.0 : (double) queueDepthTotal / queueDepthSamples;
+            }
+
+            public int getMaxQueueDepth() {
+                return maxQueueDepth;
+            }
+        }
+    }
+
+    // Profiling is opt-in per task tree:
+    ForkJoinProfiler profiler = new ForkJoinProfiler();
+    pool.invoke(new IntArraySummingTask(primitiveNumbers).withProfiler(profiler));
+    System.out.print(profiler.report());
+
+    // Or, for a long-running service, print a report every ten seconds
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    profiler.reportPeriodically(reporter, Duration.ofSeconds(10), System.out::print);
+
+
+    // Cancellation and deadlines
+
+    // pool.submit(task) followed by task.join() runs every leaf, even if whoever asked for the result has given up in the
+    // meantime. ForkJoinTask.cancel() does not help much here: it only cancels a task that has not started yet, and the
+    // root task starts straight away.
+
+    // Instead a RangeTask can be given a CancellationToken with withCancellation(). Every task checks the token once
+    // before it splits or runs its leaf, which costs a volatile read (plus a System.nanoTime() call when there is a
+    // deadline). Once the token is cancelled, no more splits happen and every task that has not started yet returns
+    // immediately, so the whole tree finishes within about one leaf's worth of time. The leaves that did run still
+    // count: the task's result is then a partial result, and getCoveredCount() says how many elements it includes.
+    public final class CancellationToken {
+
+        private final long deadlineNanos;
+        private final boolean hasDeadline;
+        private volatile boolean cancelled;
+
+        private CancellationToken(long deadlineNanos, boolean hasDeadline) {
+            this.deadlineNanos = deadlineNanos;
+            this.hasDeadline = hasDeadline;
+        }
+
+        // Only cancelled by calling cancel()
+        public static CancellationToken create() {
+            return new CancellationToken(0, false);
+        }
+
+        // Cancelled by calling cancel(), or automatically once the timeout has elapsed
+        public static CancellationToken withTimeout(Duration timeout) {
+            return new CancellationToken(System.nanoTime() + timeout.toNanos(), true);
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            if (cancelled) {
+                return true;
+            }
+            // Compare the difference rather than the values, in case nanoTime() wraps around
+            if (hasDeadline && System.nanoTime() - deadlineNanos >= 0) {
+                cancelled = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // A request handler that gives up after 200ms, and reports a partial sum rather than none at all:
+    CancellationToken token = CancellationToken.withTimeout(Duration.ofMillis(200));
+    IntArraySummingTask requestTask = new IntArraySummingTask(primitiveNumbers).withCancellation(token);
+    pool.invoke(requestTask);
+
+    if (requestTask.isComplete()) {
+        System.out.println("sum = " + requestTask.getSum());
+    } else {
+        System.out.println("partial sum of " + requestTask.getCoveredCount() + " out of " + primitiveNumbers.length
+                + " elements = " + requestTask.getSum());
+    }
+
+    // The token can also be cancelled from another thread, for example when the client disconnects
+    token.cancel();
+
+
+    // Measuring it
+
+    // Whether any of these tasks is actually faster than a plain loop depends on the input size, the number of cores
+    // and whether the input is boxed, and the crossover points are hard to guess. A microbenchmark harness such as JMH
+    // (org.openjdk.jmh:jmh-core and jmh-generator-annprocess) takes care of warm-up, forking and dead-code elimination.
+    // The benchmark below compares:
+    // * the original SummingTask over a List<Integer>
+    // * a sequential for loop
+    // * IntStream.parallel().sum()
+    // * a fixed thread pool where each thread sums one chunk and adds it to a LongAdder
+    // * IntArraySummingTask over an int[]
+    // for every combination of input size and thread count.
+
+    // IntStream.parallel() always runs in the common pool, unless it is started from inside another ForkJoinPool, so
+    // that is how it gets the same number of threads as the other candidates.
+
+    // An int[] of 1e9 elements needs 4GB of heap, and the same numbers as a List<Integer> need about 20GB, so the larger
+    // sizes need -Xmx to match (jvmArgsAppend below). The boxed SummingTask therefore has a benchmark class of its own,
+    // BoxedSummingBenchmark, whose sizes stop at 1e7.
+    import java.util.Random;
+    import java.util.concurrent.ExecutorService;
+    import java.util.concurrent.Executors;
+    import java.util.concurrent.Future;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.stream.Collectors;
+    import java.util.stream.IntStream;
+    import org.openjdk.jmh.annotations.*;
+    import org.openjdk.jmh.infra.Blackhole;
+    import org.openjdk.jmh.results.format.ResultFormatType;
+    import org.openjdk.jmh.runner.Runner;
+    import org.openjdk.jmh.runner.RunnerException;
+    import org.openjdk.jmh.runner.options.Options;
+    import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx24g" })
+    public class SummingBenchmark {
+
+        @Param({ "1000", "100000", "10000000", "1000000000" })
+        public int size;
+
+        // 0 means one thread per available processor
+        @Param({ "1", "2", "4", "8", "0" })
+        public int threads;
+
+        private int[] primitives;
+        private ForkJoinPool forkJoinPool;
+        private ExecutorService executor;
+        private int parallelism;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            parallelism = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+            primitives = new Random(42).ints(size, 0, 1000).toArray();
+            forkJoinPool = new ForkJoinPool(parallelism);
+            executor = Executors.newFixedThreadPool(parallelism);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            forkJoinPool.shutdown();
+            executor.shutdown();
+        }
+
+        @Benchmark
+        public long sequentialLoop() {
+            long sum = 0;
+            for (int number : primitives) {
+                sum += number;
+            }
+            return sum;
+        }
+
+        @Benchmark
+        public long parallelIntStream() throws Exception {
+            return forkJoinPool.submit(() -> IntStream.of(primitives).parallel().asLongStream().sum()).get();
+        }
+
+        @Benchmark
+        public long executorWithLongAdder() throws Exception {
+            LongAdder total = new LongAdder();
+            int chunk = (primitives.length + parallelism - 1) / parallelism;
+            List<Future<?>> futures = new ArrayList<>(parallelism);
+            for (int start = 0; start < primitives.length; start += chunk) {
+                int from = start, to = Math.min(start + chunk, primitives.length);
+                futures.add(executor.submit(() -> {
+                    long sum = 0;
+                    for (int i = from; i < to; i++) {
+                        sum += primitives[i];
+                    }
+                    total.add(sum);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return total.sum();
+        }
+
+        @Benchmark
+        public long intArraySummingTask() {
+            IntArraySummingTask task = new IntArraySummingTask(primitives);
+            forkJoinPool.invoke(task);
+            return task.getSum();
+        }
+
+        // Writes one CSV row per benchmark, size and thread count, including those of BoxedSummingBenchmark, which the
+        // pattern matches too. Any JMH command line option can be passed in as well, for example -p size=1000,100000
+        // to run a subset.
+        public static void main(String[] args) throws RunnerException {
+            Options options = new OptionsBuilder()
+                    .include(SummingBenchmark.class.getSimpleName())
+                    .resultFormat(ResultFormatType.CSV)
+                    .result("summing-benchmark.csv")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+    public class BoxedSummingBenchmark {
+
+        @Param({ "1000", "100000", "10000000" })
+        public int size;
+
+        // 0 means one thread per available processor
+        @Param({ "1", "2", "4", "8", "0" })
+        public int threads;
+
+        private List<Integer> boxed;
+        private ForkJoinPool forkJoinPool;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            boxed = new Random(42).ints(size, 0, 1000).boxed().collect(Collectors.toCollection(ArrayList::new));
+            forkJoinPool = new ForkJoinPool(threads == 0 ? Runtime.getRuntime().availableProcessors() : threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            forkJoinPool.shutdown();
+        }
+
+        @Benchmark
+        public void summingTaskBoxed(Blackhole blackhole) {
+            blackhole.consume(forkJoinPool.invoke(new SummingTask(boxed)));
+        }
+    }
+
+    // Run only the primitive candidates on the largest input:
+    // java -jar benchmarks.jar SummingBenchmark -e BoxedSummingBenchmark -p size=1000000000 -rf csv -rff large.csv
+
+
+    // Reducing sources that are not random-access lists
+
+    // The SummingTask splits its range by index and reads numbers.get(i). That is fine for an ArrayList, but on a
+    // LinkedList every get(i) walks the list from one end, so the whole reduction becomes quadratic. A TreeSet, a
+    // ConcurrentLinkedQueue or a file that is read record by record has no index at all.
+
+    // Every collection (and many other sources) can however provide a Spliterator, which is what parallel streams use.
+    // trySplit() hands over a prefix of the remaining elements as a new Spliterator and keeps the rest, or returns null
+    // if it cannot split, and estimateSize() says roughly how many elements are left. So the same shape works with
+    // spliterators in place of index ranges: the prefix is the left task, which is forked, and the rest is the right
+    // task, which is computed on the current thread. The left and right results are still combined in encounter order.
+
+    // Sources that cannot split cheaply, like LinkedList, split by copying the next batch of elements into an array,
+    // with batches growing as they go. That makes splitting linear in the number of elements rather than free, but the
+    // leaves never walk the list more than once.
+    import java.util.Spliterator;
+
+    public class SpliteratorReduceTask<T, A> extends RecursiveAction {
+
+        private final Spliterator<? extends T> spliterator;
+        private final Supplier<A> identity;
+        private final BiFunction<A, ? super T, A> accumulator;
+        private final BinaryOperator<A> combiner;
+        private final SplitPolicy splitPolicy;
+        private final int totalSize;
+        private A result;
+
+        public SpliteratorReduceTask(Spliterator<? extends T> spliterator, Supplier<A> identity,
+                BiFunction<A, ? super T, A> accumulator, BinaryOperator<A> combiner) {
+            this(spliterator, identity, accumulator, combiner, SplitPolicy.adaptive());
+        }
+
+        public SpliteratorReduceTask(Spliterator<? extends T> spliterator, Supplier<A> identity,
+                BiFunction<A, ? super T, A> accumulator, BinaryOperator<A> combiner, SplitPolicy splitPolicy) {
+            this(spliterator, identity, accumulator, combiner, splitPolicy, clamp(spliterator.estimateSize()));
+        }
+
+        private SpliteratorReduceTask(Spliterator<? extends T> spliterator, Supplier<A> identity,
+                BiFunction<A, ? super T, A> accumulator, BinaryOperator<A> combiner, SplitPolicy splitPolicy,
+                int totalSize) {
+            this.spliterator = spliterator;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+            this.splitPolicy = splitPolicy;
+            this.totalSize = totalSize;
+        }
+
+        // estimateSize() is Long.MAX_VALUE when the size is unknown
+        private static int clamp(long size) {
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        public A getResult() {
+            return result;
+        }
+
+        @Override
+        protected void compute() {
+            Spliterator<? extends T> prefix;
+            if (splitPolicy.shouldSplit(clamp(spliterator.estimateSize()), totalSize)
+                    && (prefix = spliterator.trySplit()) != null) {
+                SpliteratorReduceTask<T, A> leftTask = new SpliteratorReduceTask<>(prefix, identity, accumulator,
+                        combiner, splitPolicy, totalSize);
+                SpliteratorReduceTask<T, A> rightTask = new SpliteratorReduceTask<>(spliterator, identity,
+                        accumulator, combiner, splitPolicy, totalSize);
+
+                leftTask.fork();
+                rightTask.compute();
+                leftTask.join();
+
+                result = combiner.apply(leftTask.result, rightTask.result);
+            } else {
+                result = identity.get();
+                spliterator.forEachRemaining(element -> result = accumulator.apply(result, element));
+            }
+        }
+    }
+
+    // The same reduction as before, now over a LinkedList without any get(i) calls:
+    LinkedList<Integer> linkedNumbers = new LinkedList<>(numbers);
+    SpliteratorReduceTask<Integer, Long> linkedSum = new SpliteratorReduceTask<>(linkedNumbers.spliterator(),
+            () -> 0L, (sum, number) -> sum + number, Long::sum);
+    pool.invoke(linkedSum);
+    long linkedTotal = linkedSum.getResult();
+
+    // And over the lines of a file, counting the characters. Files.lines() splits a file by byte ranges where it can.
+    try (Stream<String> lines = Files.lines(Paths.get("access.log"))) {
+        SpliteratorReduceTask<String, Long> characters = new SpliteratorReduceTask<>(lines.spliterator(),
+                () -> 0L, (count, line) -> count + line.length(), Long::sum);
+        pool.invoke(characters);
+        System.out.println(characters.getResult());
+    }
+
+
+    // Summing files that do not fit in the heap
+
+    // When the numbers are in a binary file of tens of gigabytes, there is no int[] (let alone a List<Integer>) to hand
+    // to a task. The file can be memory-mapped instead: FileChannel.map() makes a region of the file addressable as a
+    // ByteBuffer, and the operating system pages it in as it is read. The heap only holds the small buffer objects.
+
+    // The ranges are now byte offsets (longs, since the file can be bigger than 2GB), always split on an element
+    // boundary. A single mapping cannot be bigger than Integer.MAX_VALUE bytes, so rather than mapping the whole file
+    // up front each leaf maps just its own region, which is at most leafBytes long. The leaf then reads the elements
+    // directly from the mapping through an IntBuffer or LongBuffer view in the file's byte order.
+
+    // Mapped regions are only released when their buffer is garbage collected, which is fine on a 64-bit JVM where
+    // address space is plentiful. (From Java 22 on, a MemorySegment mapped in an Arena can be released explicitly, and
+    // can also map the whole file at once.)
+    import java.io.IOException;
+    import java.io.UncheckedIOException;
+    import java.nio.ByteOrder;
+    import java.nio.IntBuffer;
+    import java.nio.LongBuffer;
+    import java.nio.MappedByteBuffer;
+    import java.nio.channels.FileChannel;
+    import java.nio.file.Path;
+    import java.nio.file.StandardOpenOption;
+
+    public class MappedFileSummingTask extends RecursiveAction {
+
+        public enum ElementType {
+            INT(Integer.BYTES), LONG(Long.BYTES);
+
+            private final int bytes;
+
+            ElementType(int bytes) {
+                this.bytes = bytes;
+            }
+        }
+
+        // Big enough that the cost of mapping is negligible, small enough to give every thread several leaves
+        public static final long DEFAULT_LEAF_BYTES = 64L << 20;
+
+        private final FileChannel channel;
+        private final ElementType type;
+        private final ByteOrder order;
+        private final long fromByte, toByte;
+        private final long leafBytes;
+        private long sum;
+
+        private MappedFileSummingTask(FileChannel channel, ElementType type, ByteOrder order, long fromByte,
+                long toByte, long leafBytes) {
+            this.channel = channel;
+            this.type = type;
+            this.order = order;
+            this.fromByte = fromByte;
+            this.toByte = toByte;
+            this.leafBytes = leafBytes;
+        }
+
+        public static long sum(ForkJoinPool pool, Path file, ElementType type) throws IOException {
+            return sum(pool, file, type, ByteOrder.LITTLE_ENDIAN, DEFAULT_LEAF_BYTES);
+        }
+
+        public static long sum(ForkJoinPool pool, Path file, ElementType type, ByteOrder order, long leafBytes)
+                throws IOException {
+            if (leafBytes < type.bytes || leafBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("leafBytes out of range: " + leafBytes);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size % type.bytes != 0) {
+                    throw new IOException(file + " is " + size + " bytes, not a whole number of " + type + " values");
+                }
+                MappedFileSummingTask task = new MappedFileSummingTask(channel, type, order, 0, size, leafBytes);
+                try {
+                    pool.invoke(task);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                return task.sum;
+            }
+        }
+
+        @Override
+        protected void compute() {
+            if (toByte - fromByte > leafBytes) {
+                long elements = (toByte - fromByte) / type.bytes;
+                long mid = fromByte + (elements / 2) * type.bytes;
+                MappedFileSummingTask leftTask = new MappedFileSummingTask(channel, type, order, fromByte, mid,
+                        leafBytes);
+                MappedFileSummingTask rightTask = new MappedFileSummingTask(channel, type, order, mid, toByte,
+                        leafBytes);
+
+                leftTask.fork();
+                rightTask.compute();
+                leftTask.join();
+
+                sum = Math.addExact(leftTask.sum, rightTask.sum);
+            } else {
+                MappedByteBuffer region;
+                try {
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, fromByte, toByte - fromByte);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                region.order(order);
+                sum = type == ElementType.INT ? sumInts(region) : sumLongs(region);
+            }
+        }
+
+        private static long sumInts(MappedByteBuffer region) {
+            IntBuffer ints = region.asIntBuffer();
+            long sum = 0;
+            for (int i = 0, n = ints.limit(); i < n; i++) {
+                sum += ints.get(i);
+            }
+            return sum;
+        }
+
+        private static long sumLongs(MappedByteBuffer region) {
+            LongBuffer longs = region.asLongBuffer();
+            long sum = 0;
+            for (int i = 0, n = longs.limit(); i < n; i++) {
+                sum = Math.addExact(sum, longs.get(i));
+            }
+            return sum;
+        }
+    }
+
+    // The heap only needs room for the task objects, whatever the size of the file
+    long fileTotal = MappedFileSummingTask.sum(pool, Paths.get("/data/samples.i32"),
+            MappedFileSummingTask.ElementType.INT);
+
+
+    // Vectorized leaves
+
+    // All the real work of a summing task happens in its leaves, in a loop that adds one element at a time. Modern CPUs
+    // can add 4, 8 or 16 ints with a single SIMD instruction, and the JIT does sometimes vectorize such loops by
+    // itself, but not reliably (it does not, for example, for an int[] summed into a long). The Vector API in
+    // jdk.incubator.vector makes the vectorization explicit: an IntVector holds as many lanes as the CPU's preferred
+    // vector shape (SPECIES_PREFERRED, picked at runtime), and the loop handles one whole vector per iteration, with a
+    // scalar loop for the last few elements.
+
+    // The API is still an incubator module (it has to be enabled with --add-modules jdk.incubator.vector), so the
+    // vector code lives in its own class, and LeafKernels only loads it when the module is present and the preferred
+    // species really has more than one lane. Otherwise it falls back to plain loops.
+
+    // Vector results are not always bit-for-bit the same as the scalar ones: a double sum adds the elements in a
+    // different order, so it can differ in the last few bits of precision. The int sum widens each vector to longs
+    // before adding, so it cannot overflow, and there is no vector version of the long sum because it would have to
+    // give up LongArraySummingTask's overflow check.
+    public final class LeafKernels {
+
+        static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+                && VectorLeafKernels.isUseful();
+
+        private LeafKernels() {
+        }
+
+        public static long sum(int[] numbers, int fromInclusive, int toExclusive) {
+            if (VECTORIZED) {
+                return VectorLeafKernels.sum(numbers, fromInclusive, toExclusive);
+            }
+            long sum = 0;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                sum += numbers[i];
+            }
+            return sum;
+        }
+
+        public static double sum(double[] numbers, int fromInclusive, int toExclusive) {
+            if (VECTORIZED) {
+                return VectorLeafKernels.sum(numbers, fromInclusive, toExclusive);
+            }
+            double sum = 0;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                sum += numbers[i];
+            }
+            return sum;
+        }
+
+        // Integer.MAX_VALUE for an empty range
+        public static int min(int[] numbers, int fromInclusive, int toExclusive) {
+            if (VECTORIZED) {
+                return VectorLeafKernels.min(numbers, fromInclusive, toExclusive);
+            }
+            int min = Integer.MAX_VALUE;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                min = Math.min(min, numbers[i]);
+            }
+            return min;
+        }
+
+        // Integer.MIN_VALUE for an empty range
+        public static int max(int[] numbers, int fromInclusive, int toExclusive) {
+            if (VECTORIZED) {
+                return VectorLeafKernels.max(numbers, fromInclusive, toExclusive);
+            }
+            int max = Integer.MIN_VALUE;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                max = Math.max(max, numbers[i]);
+            }
+            return max;
+        }
+
+        // The sum of a[i] * b[i] over the range
+        public static double dot(double[] a, double[] b, int fromInclusive, int toExclusive) {
+            if (VECTORIZED) {
+                return VectorLeafKernels.dot(a, b, fromInclusive, toExclusive);
+            }
+            double sum = 0;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                sum += a[i] * b[i];
+            }
+            return sum;
+        }
+    }
+
+    import jdk.incubator.vector.DoubleVector;
+    import jdk.incubator.vector.IntVector;
+    import jdk.incubator.vector.LongVector;
+    import jdk.incubator.vector.VectorOperators;
+    import jdk.incubator.vector.VectorSpecies;
+
+    final class VectorLeafKernels {
+
+        private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+        private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+        // Same bit size as INTS, so it has half as many lanes: every IntVector converts into two of these
+        private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+        private VectorLeafKernels() {
+        }
+
+        static boolean isUseful() {
+            return INTS.length() > 1 && INTS.vectorBitSize() == LONGS.vectorBitSize();
+        }
+
+        static long sum(int[] numbers, int fromInclusive, int toExclusive) {
+            LongVector sums = LongVector.zero(LONGS);
+            int i = fromInclusive;
+            for (int bound = fromInclusive + INTS.loopBound(toExclusive - fromInclusive); i < bound; i += INTS.length()) {
+                IntVector vector = IntVector.fromArray(INTS, numbers, i);
+                sums = sums.add((LongVector) vector.convertShape(VectorOperators.I2L, LONGS, 0))
+                        .add((LongVector) vector.convertShape(VectorOperators.I2L, LONGS, 1));
+            }
+            long sum = sums.reduceLanes(VectorOperators.ADD);
+            for (; i < toExclusive; i++) {
+                sum += numbers[i];
+            }
+            return sum;
+        }
+
+        static double sum(double[] numbers, int fromInclusive, int toExclusive) {
+            DoubleVector sums = DoubleVector.zero(DOUBLES);
+            int i = fromInclusive;
+            for (int bound = fromInclusive + DOUBLES.loopBound(toExclusive - fromInclusive); i < bound;
+                    i += DOUBLES.length()) {
+                sums = sums.add(DoubleVector.fromArray(DOUBLES, numbers, i));
+            }
+            double sum = sums.reduceLanes(VectorOperators.ADD);
+            for (; i < toExclusive; i++) {
+                sum += numbers[i];
+            }
+            return sum;
+        }
+
+        static int min(int[] numbers, int fromInclusive, int toExclusive) {
+            IntVector mins = IntVector.broadcast(INTS, Integer.MAX_VALUE);
+            int i = fromInclusive;
+            for (int bound = fromInclusive + INTS.loopBound(toExclusive - fromInclusive); i < bound; i += INTS.length()) {
+                mins = mins.min(IntVector.fromArray(INTS, numbers, i));
+            }
+            int min = mins.reduceLanes(VectorOperators.MIN);
+            for (; i < toExclusive; i++) {
+                min = Math.min(min, numbers[i]);
+            }
+            return min;
+        }
+
+        static int max(int[] numbers, int fromInclusive, int toExclusive) {
+            IntVector maxes = IntVector.broadcast(INTS, Integer.MIN_VALUE);
+            int i = fromInclusive;
+            for (int bound = fromInclusive + INTS.loopBound(toExclusive - fromInclusive); i < bound; i += INTS.length()) {
+                maxes = maxes.max(IntVector.fromArray(INTS, numbers, i));
+            }
+            int max = maxes.reduceLanes(VectorOperators.MAX);
+            for (; i < toExclusive; i++) {
+                max = Math.max(max, numbers[i]);
+            }
+            return max;
+        }
+
+        static double dot(double[] a, double[] b, int fromInclusive, int toExclusive) {
+            DoubleVector sums = DoubleVector.zero(DOUBLES);
+            int i = fromInclusive;
+            for (int bound = fromInclusive + DOUBLES.loopBound(toExclusive - fromInclusive); i < bound;
+                    i += DOUBLES.length()) {
+                sums = DoubleVector.fromArray(DOUBLES, a, i).fma(DoubleVector.fromArray(DOUBLES, b, i), sums);
+            }
+            double sum = sums.reduceLanes(VectorOperators.ADD);
+            for (; i < toExclusive; i++) {
+                sum += a[i] * b[i];
+            }
+            return sum;
+        }
+    }
+
+    // The int and double summing tasks above use these kernels for their leaves, and any other leaf can call them too:
+    // java --add-modules jdk.incubator.vector -cp ... MyAggregationJob
+
+
+    // Choosing where the leaves run
+
+    // A ForkJoinPool is sized for computation: new ForkJoinPool() has one thread per available processor, and it
+    // assumes that its tasks never block for long. When the leaves of a divide-and-conquer job read from disk or call
+    // another service, each blocked leaf holds on to one of those few threads, and the compute jobs that share the pool
+    // starve. (ForkJoinPool.managedBlock() can compensate with extra threads, but only if every blocking call is
+    // wrapped in it.)
+
+    // So the description of the job (how to split it, how to compute a leaf and how to combine two results) is kept
+    // apart from where it runs. A SplittableJob says nothing about threads:
+    public interface SplittableJob<R> {
+
+        // The number of elements, used by the SplitPolicy
+        int size();
+
+        SplittableJob<R> leftHalf();
+
+        SplittableJob<R> rightHalf();
+
+        R computeLeaf();
+
+        // Must be associative; left always covers the elements before right
+        R combine(R left, R right);
+    }
+
+    // An ExecutionBackend runs one. The backends differ in what happens to the leaves:
+    // * forkJoin(pool) runs the job exactly like a RangeTask in the given pool, for leaves that only compute
+    // * dedicatedForkJoin(n) does the same in a pool of its own, so one job's leaves cannot slow down other jobs
+    // * boundedPlatformPool(n) runs each leaf as a task on a fixed pool of n ordinary threads, for leaves that block
+    //   and need their concurrency capped (for example by the size of a connection pool)
+    // * virtualThreadPerLeaf() runs each leaf on its own virtual thread. A leaf that blocks on I/O unmounts from its
+    //   carrier thread, so thousands of blocked leaves cost almost nothing. (A leaf that blocks while holding a monitor
+    //   still pins its carrier before Java 24, so such leaves should use a ReentrantLock.)
+
+    // The executor backends must not block a thread waiting for another leaf, or a bounded pool could deadlock with all
+    // of its threads waiting for leaves that are still queued. So the job is split on the calling thread, every leaf is
+    // submitted as a CompletableFuture, and the results are combined with thenCombine() as they complete, in the same
+    // left-to-right tree order as the fork/join version.
+    import java.util.concurrent.CompletableFuture;
+
+    public interface ExecutionBackend extends AutoCloseable {
+
+        <R> CompletableFuture<R> submit(SplittableJob<R> job, SplitPolicy splitPolicy);
+
+        default <R> R invoke(SplittableJob<R> job, SplitPolicy splitPolicy) {
+            return submit(job, splitPolicy).join();
+        }
+
+        // Shuts down the threads owned by the backend, if any
+        @Override
+        void close();
+
+        // The pool is not shut down by close()
+        static ExecutionBackend forkJoin(ForkJoinPool pool) {
+            return new ForkJoinBackend(pool, false);
+        }
+
+        static ExecutionBackend dedicatedForkJoin(int parallelism) {
+            return new ForkJoinBackend(new ForkJoinPool(parallelism), true);
+        }
+
+        static ExecutionBackend boundedPlatformPool(int threads) {
+            return new ExecutorBackend(Executors.newFixedThreadPool(threads));
+        }
+
+        // Version >= Java SE 21
+        static ExecutionBackend virtualThreadPerLeaf() {
+            return new ExecutorBackend(Executors.newVirtualThreadPerTaskExecutor());
+        }
+    }
+
+    final class ForkJoinBackend implements ExecutionBackend {
+
+        private final ForkJoinPool pool;
+        private final boolean ownsPool;
+
+        ForkJoinBackend(ForkJoinPool pool, boolean ownsPool) {
+            this.pool = pool;
+            this.ownsPool = ownsPool;
+        }
+
+        @Override
+        public <R> CompletableFuture<R> submit(SplittableJob<R> job, SplitPolicy splitPolicy) {
+            // The supplier runs on a worker thread of the pool, so the tasks it forks go to the same pool
+            return CompletableFuture.supplyAsync(() -> new JobTask<>(job, splitPolicy, job.size()).invoke(), pool);
+        }
+
+        @Override
+        public void close() {
+            if (ownsPool) {
+                pool.shutdown();
+            }
+        }
+
+        private static final class JobTask<R> extends RecursiveTask<R> {
+
+            private final SplittableJob<R> job;
+            private final SplitPolicy splitPolicy;
+            private final int totalSize;
+
+            JobTask(SplittableJob<R> job, SplitPolicy splitPolicy, int totalSize) {
+                this.job = job;
+                this.splitPolicy = splitPolicy;
+                this.totalSize = totalSize;
+            }
+
+            @Override
+            protected R compute() {
+                if (splitPolicy.shouldSplit(job.size(), totalSize)) {
+                    JobTask<R> leftTask = new JobTask<>(job.leftHalf(), splitPolicy, totalSize);
+                    JobTask<R> rightTask = new JobTask<>(job.rightHalf(), splitPolicy, totalSize);
+
+                    leftTask.fork();
+                    R rightResult = rightTask.compute();
+                    R leftResult = leftTask.join();
+
+                    return job.combine(leftResult, rightResult);
+                } else {
+                    return job.computeLeaf();
+                }
+            }
+        }
+    }
+
+    final class ExecutorBackend implements ExecutionBackend {
+
+        private final ExecutorService executor;
+
+        ExecutorBackend(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public <R> CompletableFuture<R> submit(SplittableJob<R> job, SplitPolicy splitPolicy) {
+            return submit(job, splitPolicy, job.size());
+        }
+
+        private <R> CompletableFuture<R> submit(SplittableJob<R> job, SplitPolicy splitPolicy, int totalSize) {
+            if (splitPolicy.shouldSplit(job.size(), totalSize)) {
+                return submit(job.leftHalf(), splitPolicy, totalSize)
+                        .thenCombine(submit(job.rightHalf(), splitPolicy, totalSize), job::combine);
+            }
+            return CompletableFuture.supplyAsync(job::computeLeaf, executor);
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+
+    // For example, a job that downloads and sums the sizes of a list of objects in a blob store. Every leaf blocks on
+    // the network, so it goes to virtual threads, with a fixed leaf size of 16 downloads, rather than into the
+    // ForkJoinPool that sums our int arrays:
+    public class DownloadSizeJob implements SplittableJob<Long> {
+
+        private final BlobStore store;
+        private final List<String> keys;
+
+        public DownloadSizeJob(BlobStore store, List<String> keys) {
+            this.store = store;
+            this.keys = keys;
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public SplittableJob<Long> leftHalf() {
+            return new DownloadSizeJob(store, keys.subList(0, keys.size() / 2));
+        }
+
+        @Override
+        public SplittableJob<Long> rightHalf() {
+            return new DownloadSizeJob(store, keys.subList(keys.size() / 2, keys.size()));
+        }
+
+        @Override
+        public Long computeLeaf() {
+            long total = 0;
+            for (String key : keys) {
+                total += store.download(key).length; // blocks
+            }
+            return total;
+        }
+
+        @Override
+        public Long combine(Long left, Long right) {
+            return left + right;
+        }
+    }
+
+    try (ExecutionBackend ioBackend = ExecutionBackend.virtualThreadPerLeaf()) {
+        long downloaded = ioBackend.invoke(new DownloadSizeJob(store, keys), SplitPolicy.fixed(16));
+    }
+
+
+    // Not blocking the caller
+
+    // task.join() (or pool.invoke()) blocks the calling thread until the whole tree has finished. On a service thread
+    // that is a thread doing nothing for the duration of the reduction. What we want instead is a CompletableFuture
+    // that completes when the reduction does, so the caller can attach further stages, timeouts and so on.
+
+    // Wrapping pool.submit(task) in CompletableFuture.supplyAsync(...) works, but inside the pool a RecursiveAction
+    // still waits in join() for its forked half. A CountedCompleter does not wait at all: each task keeps a count of the
+    // subtasks it is still waiting for, and the last subtask to finish completes its parent (calling onCompletion(),
+    // where the two halves are combined), and so on up to the root. The root's onCompletion() then completes the
+    // CompletableFuture. No thread ever blocks, neither the caller nor the workers.
+
+    // The leaf is given as a function of an index range, so the same code reduces an array, a slice or any other
+    // indexed source. If the future is completed early (by orTimeout(), completeOnTimeout() or cancel()), the
+    // CancellationToken is cancelled too, so the tree stops doing work nobody will look at.
+    import java.util.concurrent.CountedCompleter;
+
+    public final class AsyncReductions {
+
+        @FunctionalInterface
+        public interface RangeToLongFunction {
+            long apply(int fromInclusive, int toExclusive);
+        }
+
+        private AsyncReductions() {
+        }
+
+        public static CompletableFuture<Long> sumAsync(ForkJoinPool pool, int[] numbers) {
+            return reduceAsync(pool, numbers.length, 0, (from, to) -> LeafKernels.sum(numbers, from, to), Long::sum,
+                    SplitPolicy.adaptive(), CancellationToken.create());
+        }
+
+        public static CompletableFuture<Long> reduceAsync(ForkJoinPool pool, int size, long identity,
+                RangeToLongFunction leaf, LongBinaryOperator combiner, SplitPolicy splitPolicy,
+                CancellationToken cancellation) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.whenComplete((result, failure) -> {
+                if (failure != null) {
+                    cancellation.cancel();
+                }
+            });
+            ReduceCompleter root = new ReduceCompleter(null, 0, size, size, identity, leaf, combiner, splitPolicy,
+                    cancellation, future);
+            pool.execute(root);
+            return future;
+        }
+
+        private static final class ReduceCompleter extends CountedCompleter<Void> {
+
+            private final int minInclusive, maxExclusive, totalSize;
+            private final long identity;
+            private final RangeToLongFunction leaf;
+            private final LongBinaryOperator combiner;
+            private final SplitPolicy splitPolicy;
+            private final CancellationToken cancellation;
+            private final CompletableFuture<Long> future; // Only set on the root
+            private ReduceCompleter left, right;
+            private long result;
+
+            ReduceCompleter(ReduceCompleter parent, int minInclusive, int maxExclusive, int totalSize, long identity,
+                    RangeToLongFunction leaf, LongBinaryOperator combiner, SplitPolicy splitPolicy,
+                    CancellationToken cancellation, CompletableFuture<Long> future) {
+                super(parent);
+                this.minInclusive = minInclusive;
+                this.maxExclusive = maxExclusive;
+                this.totalSize = totalSize;
+                this.identity = identity;
+                this.leaf = leaf;
+                this.combiner = combiner;
+                this.splitPolicy = splitPolicy;
+                this.cancellation = cancellation;
+                this.future = future;
+                this.result = identity;
+            }
+
+            private ReduceCompleter child(int minInclusive, int maxExclusive) {
+                return new ReduceCompleter(this, minInclusive, maxExclusive, totalSize, identity, leaf, combiner,
+                        splitPolicy, cancellation, null);
+            }
+
+            @Override
+            public void compute() {
+                if (cancellation.isCancelled()) {
+                    // result stays the identity
+                } else if (splitPolicy.shouldSplit(maxExclusive - minInclusive, totalSize)) {
+                    int mid = (minInclusive + maxExclusive) >>> 1;
+                    left = child(minInclusive, mid);
+                    right = child(mid, maxExclusive);
+
+                    // Two children, and this task completes when the pending count is already zero as the second one
+                    // finishes
+                    setPendingCount(1);
+                    left.fork();
+                    right.compute();
+                    return;
+                } else {
+                    result = leaf.apply(minInclusive, maxExclusive);
+                }
+                tryComplete();
+            }
+
+            @Override
+            public void onCompletion(CountedCompleter<?> caller) {
+                if (left != null) {
+                    result = combiner.applyAsLong(left.result, right.result);
+                    // The subtrees are not needed any more
+                    left = right = null;
+                }
+                if (future != null) {
+                    future.complete(result);
+                }
+            }
+
+            @Override
+            public boolean onExceptionalCompletion(Throwable failure, CountedCompleter<?> caller) {
+                if (future != null) {
+                    future.completeExceptionally(failure);
+                }
+                return true;
+            }
+        }
+    }
+
+    // A request handler can now hand the reduction to the pool and return straight away:
+    CompletableFuture<Long> futureSum = AsyncReductions.sumAsync(pool, primitiveNumbers)
+            .orTimeout(200, TimeUnit.MILLISECONDS);
+
+    futureSum.thenApply(sum -> "total: " + sum)
+            .exceptionally(failure -> "gave up: " + failure)
+            .thenAccept(response::send);
+
+
+    // Top-K and quantiles
+
+    // Ranking questions (the 100 largest values, the 99th percentile) are usually answered by sorting everything. For a
+    // primitive array Arrays.parallelSort() already sorts with fork/join, but a full sort does far more work than
+    // needed and has to copy the array if the original order must be kept. Both questions can be answered with the
+    // same range splitting as the SummingTask instead.
+
+    // Top-K: each leaf keeps the k largest values it has seen in a min-heap of k ints, so the smallest of them is at the
+    // root and a new value only has to beat that one to get in. Two halves are combined by offering the values of one
+    // heap to the other. The work is O(n log k) and the memory one small int[] per task.
+    import java.util.Arrays;
+
+    public class IntTopKTask extends RangeTask<IntTopKTask> {
+
+        private final int[] numbers;
+        private final int k;
+        private IntMinHeap heap;
+
+        public IntTopKTask(int[] numbers, int k) {
+            this(numbers, 0, numbers.length, k);
+        }
+
+        private IntTopKTask(int[] numbers, int minInclusive, int maxExclusive, int k) {
+            super(minInclusive, maxExclusive);
+            if (k < 1) {
+                throw new IllegalArgumentException("k must be positive: " + k);
+            }
+            this.numbers = numbers;
+            this.k = k;
+        }
+
+        // The (at most) k largest values, largest first
+        public int[] getTopK() {
+            return heap.toDescendingArray();
+        }
+
+        @Override
+        protected IntTopKTask subtask(int minInclusive, int maxExclusive) {
+            return new IntTopKTask(numbers, minInclusive, maxExclusive, k);
+        }
+
+        @Override
+        protected void computeLeaf() {
+            IntMinHeap heap = new IntMinHeap(Math.min(k, maxExclusive - minInclusive));
+            for (int i = minInclusive; i < maxExclusive; i++) {
+                heap.offer(numbers[i]);
+            }
+            this.heap = heap;
+        }
+
+        @Override
+        protected void combine(IntTopKTask left, IntTopKTask right) {
+            IntMinHeap bigger = left.heap.size() >= right.heap.size() ? left.heap : right.heap;
+            IntMinHeap smaller = bigger == left.heap ? right.heap : left.heap;
+            IntMinHeap merged = bigger.withCapacity(Math.min(k, bigger.size() + smaller.size()));
+            for (int i = 0; i < smaller.size(); i++) {
+                merged.offer(smaller.get(i));
+            }
+            heap = merged;
+        }
+
+        @Override
+        protected void computeSkipped() {
+            heap = new IntMinHeap(0);
+        }
+    }
+
+    // A binary min-heap of at most capacity ints. Once it is full, offer() replaces the smallest value if the new one is
+    // bigger.
+    final class IntMinHeap {
+
+        private int[] values;
+        private int size;
+
+        IntMinHeap(int capacity) {
+            values = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        // This heap, grown to the given capacity if it is smaller
+        IntMinHeap withCapacity(int capacity) {
+            if (capacity > values.length) {
+                values = Arrays.copyOf(values, capacity);
+            }
+            return this;
+        }
+
+        void offer(int value) {
+            if (size < values.length) {
+                int i = size++;
+                while (i > 0 && values[(i - 1) >>> 1] > value) {
+                    values[i] = values[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                values[i] = value;
+            } else if (size > 0 && value > values[0]) {
+                siftDown(value);
+            }
+        }
+
+        // Puts value at the root and moves it down to where it belongs
+        private void siftDown(int value) {
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && values[child + 1] < values[child]) {
+                    child++;
+                }
+                if (value <= values[child]) {
+                    break;
+                }
+                values[i] = values[child];
+                i = child;
+            }
+            values[i] = value;
+        }
+
+        int[] toDescendingArray() {
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            for (int i = 0, j = sorted.length - 1; i < j; i++, j--) {
+                int swap = sorted[i];
+                sorted[i] = sorted[j];
+                sorted[j] = swap;
+            }
+            return sorted;
+        }
+    }
+
+    // Quantiles: the p99 of 500M samples is the value with 495M samples below it, so a top-K heap would need 5M
+    // entries. Instead the value can be narrowed down with histograms. The first pass counts the values into 4096
+    // equally wide buckets covering the whole int range; adding up the counts shows which bucket contains the wanted
+    // rank. The next pass only counts the values inside that bucket, in 4096 narrower buckets, and so on. The int
+    // range is 2^32 wide and 4096^3 is 2^36, so after at most three passes the bucket is a single value, and that
+    // value is the exact answer. (More buckets would not save a pass, and every leaf allocates its own counts.) Each
+    // pass is a parallel RangeTask over the array, the array is never copied or reordered, and nothing is boxed.
+    public final class IntQuantiles {
+
+        private static final int BUCKETS = 1 << 12;
+
+        private IntQuantiles() {
+        }
+
+        // The nearest-rank quantile: the smallest value such that at least q * n of the values are less than or equal
+        // to it. q must be in (0, 1].
+        public static int quantile(ForkJoinPool pool, int[] numbers, double q) {
+            if (!(q > 0 && q <= 1)) {
+                throw new IllegalArgumentException("q must be in (0, 1]: " + q);
+            }
+            if (numbers.length == 0) {
+                throw new IllegalArgumentException("no values");
+            }
+            // 0-based rank of the wanted value in sorted order
+            long rank = (long) Math.ceil(q * numbers.length) - 1;
+
+            long lowest = Integer.MIN_VALUE;
+            long highest = Integer.MAX_VALUE;
+            while (lowest < highest) {
+                long bucketWidth = (highest - lowest) / BUCKETS + 1;
+                RangeCountingTask counting = new RangeCountingTask(numbers, 0, numbers.length, lowest, highest,
+                        bucketWidth);
+                pool.invoke(counting);
+
+                long[] counts = counting.counts;
+                int bucket = 0;
+                while (rank >= counts[bucket]) {
+                    rank -= counts[bucket];
+                    bucket++;
+                }
+                lowest = lowest + bucket * bucketWidth;
+                highest = Math.min(highest, lowest + bucketWidth - 1);
+            }
+            return (int) lowest;
+        }
+
+        // Counts the values in [lowest, highest] into buckets of bucketWidth, ignoring all other values
+        private static final class RangeCountingTask extends RangeTask<RangeCountingTask> {
+
+            private final int[] numbers;
+            private final long lowest, highest, bucketWidth;
+            private long[] counts;
+
+            RangeCountingTask(int[] numbers, int minInclusive, int maxExclusive, long lowest, long highest,
+                    long bucketWidth) {
+                super(minInclusive, maxExclusive);
+                this.numbers = numbers;
+                this.lowest = lowest;
+                this.highest = highest;
+                this.bucketWidth = bucketWidth;
+            }
+
+            @Override
+            protected RangeCountingTask subtask(int minInclusive, int maxExclusive) {
+                return new RangeCountingTask(numbers, minInclusive, maxExclusive, lowest, highest, bucketWidth);
+            }
+
+            @Override
+            protected void computeLeaf() {
+                long[] counts = new long[BUCKETS];
+                for (int i = minInclusive; i < maxExclusive; i++) {
+                    int value = numbers[i];
+                    if (value >= lowest && value <= highest) {
+                        counts[(int) ((value - lowest) / bucketWidth)]++;
+                    }
+                }
+                this.counts = counts;
+            }
+
+            @Override
+            protected void combine(RangeCountingTask left, RangeCountingTask right) {
+                long[] counts = left.counts;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += right.counts[i];
+                }
+                this.counts = counts;
+            }
+        }
+    }
+
+    IntTopKTask slowest = new IntTopKTask(latenciesMillis, 100);
+    pool.invoke(slowest);
+    int[] slowest100 = slowest.getTopK();
+
+    int p99 = IntQuantiles.quantile(pool, latenciesMillis, 0.99);
+
+
+    // Keeping a sum up to date
+
+    // When a few numbers are appended to a large data set, running the summing task again reads everything a second
+    // time just to add the few new ones. If range sums are needed as well (the total of the last hour, of one
+    // customer's block of rows, ...) each of them is another scan.
+
+    // An incremental structure avoids both. The values are kept in fixed-size chunks of a primitive long[], and the
+    // chunk totals in a Fenwick tree (binary indexed tree): entry i of the tree holds the total of the chunks
+    // (i - lowbit(i), i], where lowbit(i) is the lowest set bit of i, so both updating one chunk total and adding up
+    // the totals of the first c chunks touch at most log2(c) entries. That gives:
+    // * append and set: O(log n)
+    // * sum of any range: O(log n + chunk size), the chunk size being there for the two partial chunks at the ends
+    // * rebuilding everything from scratch, for example after a bulk load: the chunk totals are computed in parallel
+    //   with a RangeTask, and the tree is then built from them in a single linear pass
+    // Reads take a shared lock and writes an exclusive one, so a dashboard can query while data is being appended.
+    import java.util.concurrent.locks.ReadWriteLock;
+    import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+    public class IncrementalSum {
+
+        private static final int CHUNK_SHIFT = 9;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private long[][] chunks = new long[16][];
+        // 1-based: tree[c] covers chunks c - lowbit(c) up to c - 1 (0-based)
+        private long[] tree = new long[17];
+        private int size;
+
+        public static IncrementalSum of(ForkJoinPool pool, long[] values) {
+            IncrementalSum sum = new IncrementalSum();
+            sum.appendAll(pool, values);
+            return sum;
+        }
+
+        public int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public void append(long value) {
+            lock.writeLock().lock();
+            try {
+                int chunk = size >>> CHUNK_SHIFT;
+                if ((size & CHUNK_MASK) == 0) {
+                    addChunk(chunk);
+                }
+                chunks[chunk][size & CHUNK_MASK] = value;
+                size++;
+                addToTree(chunk, value);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public long get(int index) {
+            lock.readLock().lock();
+            try {
+                Objects.checkIndex(index, size);
+                return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public void set(int index, long value) {
+            lock.writeLock().lock();
+            try {
+                Objects.checkIndex(index, size);
+                long[] chunk = chunks[index >>> CHUNK_SHIFT];
+                long delta = value - chunk[index & CHUNK_MASK];
+                chunk[index & CHUNK_MASK] = value;
+                addToTree(index >>> CHUNK_SHIFT, delta);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public long sum() {
+            return sum(0, size());
+        }
+
+        // The sum of the values in [fromInclusive, toExclusive)
+        public long sum(int fromInclusive, int toExclusive) {
+            lock.readLock().lock();
+            try {
+                Objects.checkFromToIndex(fromInclusive, toExclusive, size);
+                return prefixSum(toExclusive) - prefixSum(fromInclusive);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Appends many values at once, then recomputes all chunk totals in parallel and rebuilds the tree in one pass,
+        // instead of doing one O(log n) tree update per value
+        public void appendAll(ForkJoinPool pool, long[] values) {
+            lock.writeLock().lock();
+            try {
+                int newSize = Math.addExact(size, values.length);
+                int chunkCount = (newSize + CHUNK_MASK) >>> CHUNK_SHIFT;
+                ensureChunkCapacity(chunkCount);
+                for (int copied = 0; copied < values.length; ) {
+                    int index = size + copied;
+                    if (chunks[index >>> CHUNK_SHIFT] == null) {
+                        chunks[index >>> CHUNK_SHIFT] = new long[CHUNK_SIZE];
+                    }
+                    int length = Math.min(values.length - copied, CHUNK_SIZE - (index & CHUNK_MASK));
+                    System.arraycopy(values, copied, chunks[index >>> CHUNK_SHIFT], index & CHUNK_MASK, length);
+                    copied += length;
+                }
+                size = newSize;
+                rebuild(pool, chunkCount);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void rebuild(ForkJoinPool pool, int chunkCount) {
+            long[] tree = new long[this.tree.length];
+            pool.invoke(new ChunkTotalsTask(chunks, tree, 0, chunkCount));
+
+            // Each entry now holds its own chunk's total. Adding every entry into the next entry that covers it, in
+            // increasing order, turns that into the Fenwick layout.
+            for (int i = 1; i <= chunkCount; i++) {
+                int parent = i + (i & -i);
+                if (parent <= chunkCount) {
+                    tree[parent] += tree[i];
+                }
+            }
+            this.tree = tree;
+        }
+
+        private void addChunk(int chunk) {
+            ensureChunkCapacity(chunk + 1);
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new long[CHUNK_SIZE];
+            }
+            // The new entry covers the chunks before it that belong to it, which already exist, and an empty chunk
+            int i = chunk + 1;
+            tree[i] = treePrefix(chunk) - treePrefix(i - (i & -i));
+        }
+
+        private void ensureChunkCapacity(int chunkCount) {
+            if (chunkCount > chunks.length) {
+                int capacity = Math.max(chunkCount, chunks.length * 2);
+                chunks = Arrays.copyOf(chunks, capacity);
+                tree = Arrays.copyOf(tree, capacity + 1);
+            }
+        }
+
+        private void addToTree(int chunk, long delta) {
+            int chunkCount = (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+            for (int i = chunk + 1; i <= chunkCount; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        // The total of the first chunkCount chunks
+        private long treePrefix(int chunkCount) {
+            long sum = 0;
+            for (int i = chunkCount; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        // The sum of the first count values
+        private long prefixSum(int count) {
+            long sum = treePrefix(count >>> CHUNK_SHIFT);
+            int rest = count & CHUNK_MASK;
+            if (rest > 0) {
+                long[] chunk = chunks[count >>> CHUNK_SHIFT];
+                for (int i = 0; i < rest; i++) {
+                    sum += chunk[i];
+                }
+            }
+            return sum;
+        }
+
+        // Writes the total of chunk c into tree[c + 1]
+        private static final class ChunkTotalsTask extends RangeTask<ChunkTotalsTask> {
+
+            private final long[][] chunks;
+            private final long[] tree;
+
+            ChunkTotalsTask(long[][] chunks, long[] tree, int minInclusive, int maxExclusive) {
+                super(minInclusive, maxExclusive);
+                this.chunks = chunks;
+                this.tree = tree;
+            }
+
+            @Override
+            protected ChunkTotalsTask subtask(int minInclusive, int maxExclusive) {
+                return new ChunkTotalsTask(chunks, tree, minInclusive, maxExclusive);
+            }
+
+            @Override
+            protected void computeLeaf() {
+                for (int c = minInclusive; c < maxExclusive; c++) {
+                    long total = 0;
+                    for (long value : chunks[c]) {
+                        total += value;
+                    }
+                    tree[c + 1] = total;
+                }
+            }
+
+            @Override
+            protected void combine(ChunkTotalsTask left, ChunkTotalsTask right) {
+                // Every leaf wrote its own entries
+            }
+        }
+    }
+
+    IncrementalSum revenue = IncrementalSum.of(pool, historicalRevenue);
+
+    // As new orders arrive
+    revenue.append(order.getPrice());
+
+    // A refund corrects an earlier value
+    revenue.set(orderIndex, 0);
+
+    // Dashboard refresh: no rescan
+    long total = revenue.sum();
+    long lastThousand = revenue.sum(revenue.size() - 1000, revenue.size());
 }
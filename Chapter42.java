@@ -404,6 +404,438 @@ public class Chapter42 {
     // Finished!
 
 
+    //// 2026/10/18 //
+
+    // Signaling without the busy loop
+
+    // Thread B above keeps calling notify() until A reports that it has woken up. It has to: a notify() that comes
+    // before A's wait() is lost, and A would then wait forever. The price is a core burning at 100% and a monitor
+    // hammered by B for as long as A takes to wake up.
+
+    // LockSupport.park() and LockSupport.unpark(thread) don't lose wakeups: unpark() hands the thread a permit, and
+    // park() returns immediately if the permit is already there, so an unpark() that comes first is remembered.
+    // park() may also return for no reason at all, so the waiting thread re-checks its condition in a loop, just like
+    // with wait(). OneShotLatch and Handoff below are built on that. Both can spin for a bounded number of iterations
+    // before parking: if the other thread usually arrives within a few microseconds, that saves the cost of parking
+    // and unparking, while a late partner still doesn't make the waiting thread burn a core.
+    import java.util.concurrent.TimeUnit;
+    import java.util.concurrent.TimeoutException;
+    import java.util.concurrent.atomic.AtomicReference;
+    import java.util.concurrent.locks.LockSupport;
+    import java.util.function.BooleanSupplier;
+
+    final class Parking {
+
+        private Parking() {
+        }
+
+        // Returns true if the condition became true while spinning
+        static boolean spinUntil(BooleanSupplier condition, int spins) {
+            for (int i = 0; i < spins; i++) {
+                if (condition.getAsBoolean()) {
+                    return true;
+                }
+                Thread.onSpinWait();
+            }
+            return condition.getAsBoolean();
+        }
+
+        // Returns false if the timeout elapsed first. The caller must have made itself known to the thread that will
+        // unpark it before calling this, otherwise the wakeup goes to nobody.
+        static boolean parkUntil(BooleanSupplier condition, Object blocker, boolean timed, long nanos)
+                throws InterruptedException {
+            long deadline = timed ? System.nanoTime() + nanos : 0L;
+            while (!condition.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (!timed) {
+                    LockSupport.park(blocker);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(blocker, remaining);
+                }
+            }
+            return true;
+        }
+    }
+
+    // Opens once, and then lets every current and future await() through. The waiting threads are kept in a lock-free
+    // stack, which release() swaps for the RELEASED marker before unparking them, so a thread either gets on the stack
+    // before the release (and is unparked) or sees the marker (and doesn't park at all). A thread that gives up waiting
+    // (timeout or interrupt) clears its node's thread and unlinks the cleared nodes, so polling an unreleased latch
+    // doesn't grow the stack or keep threads reachable. Unlinking only ever skips cleared nodes, so racing with a push
+    // or another unlink can at worst leave a cleared node for the next one to remove, never lose a waiting thread.
+    public final class OneShotLatch {
+
+        private static final Waiter RELEASED = new Waiter(null);
+
+        private final AtomicReference<Waiter> waiters = new AtomicReference<>();
+        private final int spins;
+
+        public OneShotLatch() {
+            this(0);
+        }
+
+        public OneShotLatch(int spins) {
+            this.spins = spins;
+        }
+
+        public boolean isReleased() {
+            return waiters.get() == RELEASED;
+        }
+
+        public void await() throws InterruptedException {
+            if (Parking.spinUntil(this::isReleased, spins)) {
+                return;
+            }
+            Waiter waiter = enqueue();
+            if (waiter != null) {
+                try {
+                    Parking.parkUntil(this::isReleased, this, false, 0L);
+                } catch (InterruptedException e) {
+                    cancel(waiter);
+                    throw e;
+                }
+            }
+        }
+
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            if (Parking.spinUntil(this::isReleased, spins)) {
+                return true;
+            }
+            Waiter waiter = enqueue();
+            if (waiter == null) {
+                return true;
+            }
+            boolean released;
+            try {
+                released = Parking.parkUntil(this::isReleased, this, true, unit.toNanos(timeout));
+            } catch (InterruptedException e) {
+                cancel(waiter);
+                throw e;
+            }
+            if (!released) {
+                cancel(waiter);
+            }
+            return released;
+        }
+
+        public void release() {
+            Waiter waiter = waiters.getAndSet(RELEASED);
+            for (; waiter != null && waiter != RELEASED; waiter = waiter.next) {
+                Thread thread = waiter.thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        // Returns null if the latch was released in the meantime
+        private Waiter enqueue() {
+            Waiter waiter = new Waiter(Thread.currentThread());
+            while (true) {
+                Waiter head = waiters.get();
+                if (head == RELEASED) {
+                    return null;
+                }
+                waiter.next = head;
+                if (waiters.compareAndSet(head, waiter)) {
+                    return waiter;
+                }
+            }
+        }
+
+        private void cancel(Waiter waiter) {
+            waiter.thread = null;
+            Waiter head;
+            while ((head = waiters.get()) != null && head != RELEASED && head.thread == null) {
+                waiters.compareAndSet(head, head.next);
+            }
+            if (head == null || head == RELEASED) {
+                return;
+            }
+            for (Waiter previous = head, node = head.next; node != null; node = node.next) {
+                if (node.thread == null) {
+                    previous.next = node.next;
+                } else {
+                    previous = node;
+                }
+            }
+        }
+
+        private static final class Waiter {
+            volatile Thread thread; // null once the thread stopped waiting
+            volatile Waiter next;
+
+            Waiter(Thread thread) {
+                this.thread = thread;
+            }
+        }
+    }
+
+    // A reusable rendezvous for two threads, like java.util.concurrent.Exchanger: the first thread leaves its item in
+    // the slot and waits, the second one takes it out, leaves its own item in the first one's node and unparks it.
+    // A waiting thread that times out or is interrupted has to take its node back out of the slot. If that fails, a
+    // partner has already taken it, and the exchange completes anyway.
+    public final class Handoff<V> {
+
+        private static final Object NULL_ITEM = new Object();
+
+        private final AtomicReference<Node> slot = new AtomicReference<>();
+        private final int spins;
+
+        public Handoff() {
+            this(0);
+        }
+
+        public Handoff(int spins) {
+            this.spins = spins;
+        }
+
+        public V exchange(V item) throws InterruptedException {
+            try {
+                return exchange(item, false, 0L);
+            } catch (TimeoutException e) {
+                throw new AssertionError(e); // not timed
+            }
+        }
+
+        public V exchange(V item, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            return exchange(item, true, unit.toNanos(timeout));
+        }
+
+        private V exchange(V item, boolean timed, long nanos) throws InterruptedException, TimeoutException {
+            Object boxed = item == null ? NULL_ITEM : item;
+            Node mine = null;
+            while (true) {
+                Node waiting = slot.get();
+                if (waiting != null) {
+                    if (slot.compareAndSet(waiting, null)) {
+                        waiting.match = boxed;
+                        LockSupport.unpark(waiting.thread);
+                        return unbox(waiting.item);
+                    }
+                } else {
+                    if (mine == null) {
+                        mine = new Node(boxed, Thread.currentThread());
+                    }
+                    if (slot.compareAndSet(null, mine)) {
+                        return awaitMatch(mine, timed, nanos);
+                    }
+                }
+            }
+        }
+
+        private V awaitMatch(Node mine, boolean timed, long nanos) throws InterruptedException, TimeoutException {
+            BooleanSupplier matched = () -> mine.match != null;
+            boolean interrupted = false;
+            try {
+                if (Parking.spinUntil(matched, spins) || Parking.parkUntil(matched, this, timed, nanos)) {
+                    return unbox(mine.match);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (slot.compareAndSet(mine, null)) {
+                if (interrupted) {
+                    throw new InterruptedException();
+                }
+                throw new TimeoutException();
+            }
+            // Too late to cancel: the partner is about to hand over its item
+            while (mine.match == null) {
+                Thread.onSpinWait();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return unbox(mine.match);
+        }
+
+        @SuppressWarnings("unchecked")
+        private V unbox(Object item) {
+            return item == NULL_ITEM ? null : (V) item;
+        }
+
+        private static final class Node {
+            final Object item;
+            final Thread thread;
+            volatile Object match;
+
+            Node(Object item, Thread thread) {
+                this.item = item;
+                this.thread = thread;
+            }
+        }
+    }
+
+    // The WaitAndNotify example with a latch: no shared flag, no synchronized blocks, and thread B signals exactly once,
+    // whether thread A has started waiting yet or not.
+    OneShotLatch bHasFinished = new OneShotLatch();
+
+    Thread threadA = new Thread(() -> {
+        System.out.println("A2: Thread A is about to start waiting...");
+        try {
+            bHasFinished.await();
+            System.out.println("A3: Thread A has finished waiting. Guaranteed to happen after B3");
+        } catch (InterruptedException e) {
+            System.out.println("Thread A was interrupted while waiting");
+        }
+    }, "Thread A");
+
+    Thread threadB = new Thread(() -> {
+        System.out.println("B3: Will ALWAYS print before A3");
+        bHasFinished.release();
+    }, "Thread B");
+
+    // How much it matters
+
+    // HandoffBenchmark lets a thread wait for a signal that another thread sends after a short pause, a few thousand
+    // times per strategy, and reports the wake-up latency (from sending the signal until the waiting thread runs) and
+    // the CPU time both threads used. CPU time can't be measured with JMH, so this is a plain main method; run it on a
+    // quiet machine with at least two cores, the spinning strategies look terrible when the two threads share one.
+    import java.lang.management.ManagementFactory;
+    import java.lang.management.ThreadMXBean;
+    import java.util.Arrays;
+    import java.util.concurrent.atomic.AtomicBoolean;
+    import java.util.function.Supplier;
+
+    public class HandoffBenchmark {
+
+        interface Signal {
+            void await() throws InterruptedException;
+
+            void signal();
+        }
+
+        // wait() and notify() with a flag, the correct way to use them
+        static final class MonitorSignal implements Signal {
+            private boolean signaled;
+
+            @Override
+            public synchronized void await() throws InterruptedException {
+                while (!signaled) {
+                    wait();
+                }
+            }
+
+            @Override
+            public synchronized void signal() {
+                signaled = true;
+                notify();
+            }
+        }
+
+        // The WaitAndNotify example: notify() until the waiting thread says it has woken up
+        static final class BusyNotifySignal implements Signal {
+            private final Object obj = new Object();
+            private final AtomicBoolean woken = new AtomicBoolean();
+
+            @Override
+            public void await() throws InterruptedException {
+                synchronized (obj) {
+                    obj.wait();
+                }
+                woken.set(true);
+            }
+
+            @Override
+            public void signal() {
+                while (!woken.get()) {
+                    synchronized (obj) {
+                        obj.notify();
+                    }
+                }
+            }
+        }
+
+        static Signal latch(int spins) {
+            OneShotLatch latch = new OneShotLatch(spins);
+            return new Signal() {
+                @Override
+                public void await() throws InterruptedException {
+                    latch.await();
+                }
+
+                @Override
+                public void signal() {
+                    latch.release();
+                }
+            };
+        }
+
+        static final int ROUNDS = 5_000;
+        static final long PAUSE_NANOS = 50_000;
+
+        public static void main(String[] args) throws Exception {
+            run("wait/notify", MonitorSignal::new);
+            run("busy notify", BusyNotifySignal::new);
+            run("park", () -> latch(0));
+            run("spin 10000, park", () -> latch(10_000));
+        }
+
+        static void run(String name, Supplier<Signal> signals) throws Exception {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long[] latencies = new long[ROUNDS];
+            long[] cpuNanos = new long[2];
+            Signal[] current = new Signal[1];
+            long[] signaledAt = new long[1];
+            Handoff<Signal> nextRound = new Handoff<>();
+
+            Thread waiter = new Thread(() -> {
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                try {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Signal signal = signals.get();
+                        nextRound.exchange(signal);
+                        signal.await();
+                        latencies[round] = System.nanoTime() - signaledAt[0];
+                        nextRound.exchange(null); // tell the sender that this round is over
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cpuNanos[0] = threads.getCurrentThreadCpuTime() - cpuStart;
+            });
+            Thread sender = new Thread(() -> {
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                try {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        current[0] = nextRound.exchange(null);
+                        LockSupport.parkNanos(PAUSE_NANOS); // let the waiter get to await()
+                        signaledAt[0] = System.nanoTime();
+                        current[0].signal();
+                        nextRound.exchange(null);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cpuNanos[1] = threads.getCurrentThreadCpuTime() - cpuStart;
+            });
+            long start = System.nanoTime();
+            waiter.start();
+            sender.start();
+            waiter.join();
+            sender.join();
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(latencies);
+            System.out.printf("%-18s wake-up p50 %8.1f us  p99 %8.1f us  CPU %6.1f ms (waiter) %6.1f ms (sender) in %6.1f ms%n",
+                    name, latencies[ROUNDS / 2] / 1e3, latencies[ROUNDS * 99 / 100] / 1e3,
+                    cpuNanos[0] / 1e6, cpuNanos[1] / 1e6, elapsed / 1e6);
+        }
+    }
+
+    // What to look for: wait/notify and park wake up in roughly the same time, but the busy notify loop makes the
+    // sender's CPU time grow with the waiter's wake-up latency. Spinning before parking cuts the median wake-up time
+    // when the signal comes in time, and pays for it with the waiter's CPU time, so keep the number of spins small
+    // unless the signal usually arrives within a few microseconds.
+
+
     /// Section 42.5: getClass() method
 
     // The getClass() method can be used to find the runtime class type of an object. See the example below:
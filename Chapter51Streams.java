@@ -230,6 +230,173 @@ Stream.of("apple", "orange", "banana", "apple")
 // orange=1
 // apple=2
 
+// 2026 10 18 15:00
+
+//* Counting without a map of boxes
+
+// groupingBy(Function.identity(), counting()) reads well, but it is not cheap on big inputs.
+// On Java 8 counting() boxes a new Long for every element. Since Java 9 it sums into a long[1] per key,
+// but every key still costs a HashMap node, a holder array and a boxed Long at the end,
+// and a parallel stream builds one HashMap per chunk and then merges them all.
+
+// ObjectLongHashMap counts in place: keys and counts live in two parallel arrays,
+// and a key is found by probing the next slots (open addressing), so counting allocates nothing
+// except when the table grows. The frequencies() collector uses it, one map per chunk as usual.
+public final class ObjectLongHashMap<K> {
+
+	private static final Object NULL_KEY = new Object();
+
+	private Object[] keys = new Object[16];
+	private long[] values = new long[16];
+	private int size;
+
+	public void addTo(K key, long delta) {
+		Object k = key == null ? NULL_KEY : key;
+		int mask = keys.length - 1;
+		for (int i = spread(k.hashCode()) & mask; ; i = (i + 1) & mask) {
+			Object current = keys[i];
+			if (current == null) {
+				keys[i] = k;
+				values[i] = delta;
+				if (++size > keys.length >> 1) {
+					resize();
+				}
+				return;
+			}
+			if (current.equals(k)) {
+				values[i] += delta;
+				return;
+			}
+		}
+	}
+
+	// Returns 0 for keys that were never counted
+	public long get(Object key) {
+		Object k = key == null ? NULL_KEY : key;
+		int mask = keys.length - 1;
+		for (int i = spread(k.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask) {
+			if (keys[i].equals(k)) {
+				return values[i];
+			}
+		}
+		return 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(ObjLongConsumer<? super K> action) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				action.accept(keys[i] == NULL_KEY ? null : (K) keys[i], values[i]);
+			}
+		}
+	}
+
+	public ObjectLongHashMap<K> addAll(ObjectLongHashMap<? extends K> other) {
+		other.forEach(this::addTo);
+		return this;
+	}
+
+	public Map<K, Long> toMap() {
+		Map<K, Long> map = new HashMap<>();
+		forEach(map::put);
+		return map;
+	}
+
+	private void resize() {
+		Object[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new Object[oldKeys.length * 2];
+		values = new long[oldValues.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != null) {
+				int i = spread(oldKeys[j].hashCode()) & mask;
+				while (keys[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	// Linear probing needs well mixed low bits, which many hashCode() implementations don't have
+	private static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
+
+// With a parallel stream, merging the per-chunk maps can cost as much as the counting.
+// concurrentFrequencies() avoids it: it is a CONCURRENT and UNORDERED collector,
+// so all threads of a parallel stream add to the same ConcurrentHashMap of LongAdder cells,
+// and there is nothing left to merge at the end.
+// Threads counting the same popular key don't fight over one counter either, since a LongAdder
+// spreads contended increments over several cells. The get() before computeIfAbsent()
+// keeps the common case (the key is already there) free of locking.
+// ConcurrentHashMap does not allow null keys, so neither does this collector.
+public final class FrequencyCollectors {
+
+	private FrequencyCollectors() {
+	}
+
+	public static <T> Collector<T, ?, ObjectLongHashMap<T>> frequencies() {
+		return frequencies(Function.identity());
+	}
+
+	public static <T, K> Collector<T, ?, ObjectLongHashMap<K>> frequencies(Function<? super T, ? extends K> classifier) {
+		return Collector.of(
+				ObjectLongHashMap::new,
+				(counts, element) -> counts.addTo(classifier.apply(element), 1),
+				ObjectLongHashMap::addAll,
+				Collector.Characteristics.UNORDERED);
+	}
+
+	public static <T> Collector<T, ?, ConcurrentHashMap<T, LongAdder>> concurrentFrequencies() {
+		return concurrentFrequencies(Function.identity());
+	}
+
+	public static <T, K> Collector<T, ?, ConcurrentHashMap<K, LongAdder>> concurrentFrequencies(
+			Function<? super T, ? extends K> classifier) {
+		return Collector.of(
+				ConcurrentHashMap::new,
+				(counts, element) -> increment(counts, classifier.apply(element), 1),
+				(left, right) -> {
+					if (left != right) {
+						right.forEach((key, count) -> increment(left, key, count.sum()));
+					}
+					return left;
+				},
+				Collector.Characteristics.CONCURRENT,
+				Collector.Characteristics.UNORDERED);
+	}
+
+	private static <K> void increment(ConcurrentHashMap<K, LongAdder> counts, K key, long delta) {
+		LongAdder count = counts.get(key);
+		if (count == null) {
+			count = counts.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.add(delta);
+	}
+}
+
+// The fruit example again:
+ObjectLongHashMap<String> fruitCounts = Stream.of("apple", "orange", "banana", "apple")
+		.collect(FrequencyCollectors.frequencies());
+fruitCounts.forEach((fruit, count) -> System.out.println(fruit + "=" + count));
+
+// And a word count, where all threads share one table:
+ConcurrentHashMap<String, LongAdder> wordCounts = Stream.of("to be or not to be", "that is the question")
+		.parallel()
+		.flatMap(line -> Arrays.stream(line.split(" ")))
+		.collect(FrequencyCollectors.concurrentFrequencies());
+System.out.println(wordCounts.get("be").sum());
+// 2
+
 
 //# Section 57.4: Infinite Streams
 
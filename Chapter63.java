@@ -1,9 +1,22 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class Chapter63 {
 
@@ -146,4 +159,3338 @@ public class Chapter63 {
     // Synchronized collections from the Collections utility methods are thread safe for addition/removal of elements,
     // but not iteration (unless the underlying collection being passed to it already is).
 
+
+    //// 2026/10/18 //
+
+    // Lock striping instead of one lock
+
+    // Collections.synchronizedMap(new HashMap<>()) guards every get and put with the same monitor, so with many threads
+    // they all queue up behind each other, even when they touch unrelated keys. ConcurrentHashMap is the usual answer;
+    // the map below shows the idea behind it (and behind the Java 7 ConcurrentHashMap in particular): split the map
+    // into a number of stripes, each a small hash table with a lock of its own. A key always lives in the same stripe,
+    // chosen from its hash, so threads only contend when their keys land in the same stripe.
+
+    // Each stripe is guarded by a StampedLock, and reads are optimistic: get() reads the stripe without locking and
+    // then checks with validate() that no write happened meanwhile. Only if one did does it read again under the read
+    // lock. The stripe's data is laid out so that a read racing with a write can see stale data but never break:
+    // nodes have final key, hash and next fields, so a chain can never form a cycle, and a removal copies the part of
+    // the chain in front of the removed node instead of unlinking it in place.
+
+    // Like ConcurrentHashMap, it does not allow null keys or values. The entry set and its iterator work on a snapshot
+    // taken one stripe at a time, so iteration never throws ConcurrentModificationException. The compound operations
+    // of ConcurrentMap (putIfAbsent, compute, merge, ...) run under the write lock of the key's stripe, so like with
+    // synchronizedMap each of them is atomic, and the functions passed to them must not use the map themselves.
+    public class StripedMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        private final Stripe<K, V>[] stripes;
+        private final int stripeMask;
+        private final int stripeShift;
+
+        public StripedMap() {
+            this(64);
+        }
+
+        // stripeCount is rounded up to a power of two
+        @SuppressWarnings("unchecked")
+        public StripedMap(int stripeCount) {
+            if (stripeCount < 1 || stripeCount > 1 << 16) {
+                throw new IllegalArgumentException("stripeCount out of range: " + stripeCount);
+            }
+            int count = 1;
+            while (count < stripeCount) {
+                count <<= 1;
+            }
+            stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new Stripe<>();
+            }
+            stripeMask = count - 1;
+            stripeShift = Integer.numberOfTrailingZeros(count);
+        }
+
+        private static int spread(int hashCode) {
+            return hashCode ^ (hashCode >>> 16);
+        }
+
+        private Stripe<K, V> stripeFor(int hash) {
+            return stripes[hash & stripeMask];
+        }
+
+        @Override
+        public V get(Object key) {
+            int hash = spread(key.hashCode());
+            Stripe<K, V> stripe = stripeFor(hash);
+            int bucketHash = hash >>> stripeShift;
+
+            long stamp = stripe.lock.tryOptimisticRead();
+            if (stamp != 0) {
+                V value = stripe.find(bucketHash, key);
+                if (stripe.lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            stamp = stripe.lock.readLock();
+            try {
+                return stripe.find(bucketHash, key);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            Objects.requireNonNull(value, "value");
+            int hash = spread(key.hashCode());
+            Stripe<K, V> stripe = stripeFor(hash);
+            long stamp = stripe.lock.writeLock();
+            try {
+                return stripe.put(hash >>> stripeShift, key, value);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            int hash = spread(key.hashCode());
+            Stripe<K, V> stripe = stripeFor(hash);
+            long stamp = stripe.lock.writeLock();
+            try {
+                return stripe.remove(hash >>> stripeShift, key);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            Objects.requireNonNull(value, "value");
+            return writeLocked(key, (stripe, hash) -> {
+                V existing = stripe.find(hash, key);
+                return existing != null ? existing : stripe.put(hash, key, value);
+            });
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            return value != null && writeLocked(key, (stripe, hash) -> {
+                if (!value.equals(stripe.find(hash, key))) {
+                    return false;
+                }
+                stripe.remove(hash, key);
+                return true;
+            });
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            Objects.requireNonNull(oldValue, "oldValue");
+            Objects.requireNonNull(newValue, "newValue");
+            return writeLocked(key, (stripe, hash) -> {
+                if (!oldValue.equals(stripe.find(hash, key))) {
+                    return false;
+                }
+                stripe.put(hash, key, newValue);
+                return true;
+            });
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            Objects.requireNonNull(value, "value");
+            return writeLocked(key, (stripe, hash) ->
+                    stripe.find(hash, key) != null ? stripe.put(hash, key, value) : null);
+        }
+
+        @Override
+        public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+            Objects.requireNonNull(mappingFunction);
+            return writeLocked(key, (stripe, hash) -> {
+                V value = stripe.find(hash, key);
+                if (value == null) {
+                    value = mappingFunction.apply(key);
+                    if (value != null) {
+                        stripe.put(hash, key, value);
+                    }
+                }
+                return value;
+            });
+        }
+
+        @Override
+        public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            Objects.requireNonNull(remappingFunction);
+            return writeLocked(key, (stripe, hash) -> {
+                V oldValue = stripe.find(hash, key);
+                return oldValue == null ? null : store(stripe, hash, key, remappingFunction.apply(key, oldValue));
+            });
+        }
+
+        @Override
+        public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            Objects.requireNonNull(remappingFunction);
+            return writeLocked(key, (stripe, hash) ->
+                    store(stripe, hash, key, remappingFunction.apply(key, stripe.find(hash, key))));
+        }
+
+        @Override
+        public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            Objects.requireNonNull(value, "value");
+            Objects.requireNonNull(remappingFunction);
+            return writeLocked(key, (stripe, hash) -> {
+                V oldValue = stripe.find(hash, key);
+                return store(stripe, hash, key, oldValue == null ? value : remappingFunction.apply(oldValue, value));
+            });
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+            Objects.requireNonNull(function);
+            for (Stripe<K, V> stripe : stripes) {
+                long stamp = stripe.lock.writeLock();
+                try {
+                    stripe.replaceAll(function);
+                } finally {
+                    stripe.lock.unlockWrite(stamp);
+                }
+            }
+        }
+
+        // Stores the result of a remapping function; null removes the key
+        private V store(Stripe<K, V> stripe, int hash, K key, V value) {
+            if (value == null) {
+                stripe.remove(hash, key);
+            } else {
+                stripe.put(hash, key, value);
+            }
+            return value;
+        }
+
+        private <R> R writeLocked(Object key, StripeOperation<K, V, R> operation) {
+            int hash = spread(key.hashCode());
+            Stripe<K, V> stripe = stripeFor(hash);
+            long stamp = stripe.lock.writeLock();
+            try {
+                return operation.apply(stripe, hash >>> stripeShift);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+
+        @FunctionalInterface
+        private interface StripeOperation<K, V, R> {
+            R apply(Stripe<K, V> stripe, int hash);
+        }
+
+        @Override
+        public int size() {
+            long size = 0;
+            for (Stripe<K, V> stripe : stripes) {
+                size += stripe.count;
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void clear() {
+            for (Stripe<K, V> stripe : stripes) {
+                long stamp = stripe.lock.writeLock();
+                try {
+                    stripe.clear();
+                } finally {
+                    stripe.lock.unlockWrite(stamp);
+                }
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    List<Map.Entry<K, V>> snapshot = new ArrayList<>();
+                    for (Stripe<K, V> stripe : stripes) {
+                        long stamp = stripe.lock.readLock();
+                        try {
+                            stripe.copyTo(snapshot);
+                        } finally {
+                            stripe.lock.unlockRead(stamp);
+                        }
+                    }
+                    Iterator<Map.Entry<K, V>> entries = snapshot.iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private Map.Entry<K, V> last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            return last = entries.next();
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+                            StripedMap.this.remove(last.getKey());
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return StripedMap.this.size();
+                }
+            };
+        }
+
+        private static final class Node<K, V> {
+            final int hash;
+            final K key;
+            final Node<K, V> next;
+            V value;
+
+            Node(int hash, K key, V value, Node<K, V> next) {
+                this.hash = hash;
+                this.key = key;
+                this.value = value;
+                this.next = next;
+            }
+        }
+
+        // All methods except find() must be called with the write lock held
+        private static final class Stripe<K, V> {
+
+            final StampedLock lock = new StampedLock();
+            Node<K, V>[] table = newTable(8);
+            volatile int count;
+
+            @SuppressWarnings("unchecked")
+            private static <K, V> Node<K, V>[] newTable(int capacity) {
+                return (Node<K, V>[]) new Node[capacity];
+            }
+
+            V find(int hash, Object key) {
+                Node<K, V>[] table = this.table;
+                for (Node<K, V> node = table[hash & (table.length - 1)]; node != null; node = node.next) {
+                    if (node.hash == hash && key.equals(node.key)) {
+                        return node.value;
+                    }
+                }
+                return null;
+            }
+
+            V put(int hash, K key, V value) {
+                Node<K, V>[] table = this.table;
+                int index = hash & (table.length - 1);
+                for (Node<K, V> node = table[index]; node != null; node = node.next) {
+                    if (node.hash == hash && key.equals(node.key)) {
+                        V previous = node.value;
+                        node.value = value;
+                        return previous;
+                    }
+                }
+                table[index] = new Node<>(hash, key, value, table[index]);
+                count++;
+                if (count > table.length - (table.length >>> 2)) {
+                    resize();
+                }
+                return null;
+            }
+
+            V remove(int hash, Object key) {
+                Node<K, V>[] table = this.table;
+                int index = hash & (table.length - 1);
+                Node<K, V> first = table[index];
+                for (Node<K, V> node = first; node != null; node = node.next) {
+                    if (node.hash == hash && key.equals(node.key)) {
+                        // Copy the nodes in front of the removed one, so readers never see a half-unlinked chain
+                        Node<K, V> chain = node.next;
+                        for (Node<K, V> before = first; before != node; before = before.next) {
+                            chain = new Node<>(before.hash, before.key, before.value, chain);
+                        }
+                        table[index] = chain;
+                        count--;
+                        return node.value;
+                    }
+                }
+                return null;
+            }
+
+            // Builds the new table completely before publishing it
+            private void resize() {
+                Node<K, V>[] oldTable = table;
+                Node<K, V>[] newTable = newTable(oldTable.length * 2);
+                int mask = newTable.length - 1;
+                for (Node<K, V> head : oldTable) {
+                    for (Node<K, V> node = head; node != null; node = node.next) {
+                        int index = node.hash & mask;
+                        newTable[index] = new Node<>(node.hash, node.key, node.value, newTable[index]);
+                    }
+                }
+                table = newTable;
+            }
+
+            void clear() {
+                table = newTable(8);
+                count = 0;
+            }
+
+            void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+                for (Node<K, V> head : table) {
+                    for (Node<K, V> node = head; node != null; node = node.next) {
+                        node.value = Objects.requireNonNull(function.apply(node.key, node.value), "value");
+                    }
+                }
+            }
+
+            // Needs at least the read lock
+            void copyTo(List<Map.Entry<K, V>> entries) {
+                for (Node<K, V> head : table) {
+                    for (Node<K, V> node = head; node != null; node = node.next) {
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+                    }
+                }
+            }
+        }
+    }
+
+    // Primitive keys
+
+    // With a Map<Long, V> every lookup boxes its key, and every entry is a node object pointing at a Long. For maps keyed
+    // by numeric IDs, each stripe can instead be an open-addressing table: a long[] of keys next to an Object[] of
+    // values, searched by linear probing. A removed entry is not marked with a tombstone; the entries after it in the
+    // same run are shifted back, so lookups can always stop at the first empty slot. Lookups are bounded by the table
+    // length, so an optimistic read that races with a write cannot loop forever, and validate() then discards it.
+    public class StripedLongMap<V> {
+
+        private final LongStripe[] stripes;
+        private final int stripeMask;
+        private final int stripeShift;
+
+        public StripedLongMap() {
+            this(64);
+        }
+
+        // stripeCount must be a power of two
+        public StripedLongMap(int stripeCount) {
+            if (stripeCount < 1 || Integer.bitCount(stripeCount) != 1) {
+                throw new IllegalArgumentException("stripeCount must be a power of two: " + stripeCount);
+            }
+            stripes = new LongStripe[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new LongStripe(Integer.numberOfTrailingZeros(stripeCount));
+            }
+            stripeMask = stripeCount - 1;
+            stripeShift = Integer.numberOfTrailingZeros(stripeCount);
+        }
+
+        // A multiplicative hash, since IDs are often sequential
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+            int hash = hash(key);
+            LongStripe stripe = stripes[hash & stripeMask];
+            int bucketHash = hash >>> stripeShift;
+
+            long stamp = stripe.lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Object value = stripe.find(bucketHash, key);
+                if (stripe.lock.validate(stamp)) {
+                    return (V) value;
+                }
+            }
+            stamp = stripe.lock.readLock();
+            try {
+                return (V) stripe.find(bucketHash, key);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public V put(long key, V value) {
+            Objects.requireNonNull(value, "value");
+            int hash = hash(key);
+            LongStripe stripe = stripes[hash & stripeMask];
+            long stamp = stripe.lock.writeLock();
+            try {
+                return (V) stripe.put(hash >>> stripeShift, key, value);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public V remove(long key) {
+            int hash = hash(key);
+            LongStripe stripe = stripes[hash & stripeMask];
+            long stamp = stripe.lock.writeLock();
+            try {
+                return (V) stripe.remove(hash >>> stripeShift, key);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+
+        public int size() {
+            long size = 0;
+            for (LongStripe stripe : stripes) {
+                size += stripe.count;
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        private static final class LongStripe {
+
+            final StampedLock lock = new StampedLock();
+            final int stripeShift;
+            long[] keys = new long[16];
+            Object[] values = new Object[16]; // null marks an empty slot
+            volatile int count;
+
+            LongStripe(int stripeShift) {
+                this.stripeShift = stripeShift;
+            }
+
+            Object find(int hash, long key) {
+                long[] keys = this.keys;
+                Object[] values = this.values;
+                int mask = Math.min(keys.length, values.length) - 1;
+                for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                    Object value = values[i];
+                    if (value == null) {
+                        return null;
+                    }
+                    if (keys[i] == key) {
+                        return value;
+                    }
+                }
+                return null;
+            }
+
+            Object put(int hash, long key, Object value) {
+                int mask = keys.length - 1;
+                int i = hash & mask;
+                while (values[i] != null) {
+                    if (keys[i] == key) {
+                        Object previous = values[i];
+                        values[i] = value;
+                        return previous;
+                    }
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = value;
+                count++;
+                if (count > keys.length >>> 1) {
+                    resize();
+                }
+                return null;
+            }
+
+            Object remove(int hash, long key) {
+                int mask = keys.length - 1;
+                int i = hash & mask;
+                while (values[i] != null) {
+                    if (keys[i] == key) {
+                        Object previous = values[i];
+                        shiftBack(i);
+                        count--;
+                        return previous;
+                    }
+                    i = (i + 1) & mask;
+                }
+                return null;
+            }
+
+            // Moves later entries of the same run into the gap at i, so that no lookup stops early
+            private void shiftBack(int gap) {
+                int mask = keys.length - 1;
+                int i = gap;
+                while (true) {
+                    i = (i + 1) & mask;
+                    if (values[i] == null) {
+                        break;
+                    }
+                    int home = homeSlot(keys[i], mask);
+                    // Only move the entry if its home slot is not between the gap and its current slot
+                    if (((i - home) & mask) >= ((i - gap) & mask)) {
+                        keys[gap] = keys[i];
+                        values[gap] = values[i];
+                        gap = i;
+                    }
+                }
+                values[gap] = null;
+            }
+
+            private int homeSlot(long key, int mask) {
+                return (hash(key) >>> stripeShift) & mask;
+            }
+
+            private void resize() {
+                long[] oldKeys = keys;
+                Object[] oldValues = values;
+                long[] newKeys = new long[oldKeys.length * 2];
+                Object[] newValues = new Object[oldValues.length * 2];
+                int mask = newKeys.length - 1;
+                for (int j = 0; j < oldKeys.length; j++) {
+                    if (oldValues[j] != null) {
+                        int i = homeSlot(oldKeys[j], mask);
+                        while (newValues[i] != null) {
+                            i = (i + 1) & mask;
+                        }
+                        newKeys[i] = oldKeys[j];
+                        newValues[i] = oldValues[j];
+                    }
+                }
+                keys = newKeys;
+                values = newValues;
+            }
+        }
+    }
+
+
+    // Whether striping pays off depends on the number of threads and the read/write mix, so the three maps are compared
+    // with JMH (see the benchmark in the Fork/Join chapter for the setup). Every thread does 90% get() and 10% put()
+    // on random keys out of a fixed key set; main() runs the benchmark once for every thread count from 1 to 128 and
+    // writes all results to one CSV file per thread count.
+    import java.util.concurrent.ThreadLocalRandom;
+    import java.util.concurrent.TimeUnit;
+    import org.openjdk.jmh.annotations.*;
+    import org.openjdk.jmh.results.format.ResultFormatType;
+    import org.openjdk.jmh.runner.Runner;
+    import org.openjdk.jmh.runner.RunnerException;
+    import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public class MapContentionBenchmark {
+
+        private static final int KEYS = 1 << 16;
+
+        @Param({ "synchronizedMap", "ConcurrentHashMap", "StripedMap" })
+        public String implementation;
+
+        private Map<Integer, Integer> map;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            switch (implementation) {
+                case "synchronizedMap":
+                    map = Collections.synchronizedMap(new HashMap<>());
+                    break;
+                case "ConcurrentHashMap":
+                    map = new ConcurrentHashMap<>();
+                    break;
+                default:
+                    map = new StripedMap<>(64);
+            }
+            for (int i = 0; i < KEYS; i++) {
+                map.put(i, i);
+            }
+        }
+
+        @Benchmark
+        public Integer readMostly() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Integer key = random.nextInt(KEYS);
+            if (random.nextInt(10) == 0) {
+                return map.put(key, key);
+            }
+            return map.get(key);
+        }
+
+        public static void main(String[] args) throws RunnerException {
+            for (int threads = 1; threads <= 128; threads *= 2) {
+                new Runner(new OptionsBuilder()
+                        .include(MapContentionBenchmark.class.getSimpleName())
+                        .threads(threads)
+                        .resultFormat(ResultFormatType.CSV)
+                        .result("map-contention-" + threads + "-threads.csv")
+                        .build()).run();
+            }
+        }
+    }
+
+    // The striped map can replace the synchronized one without any other change:
+    Map<String, String> stripedMap = new StripedMap<String, String>(64);
+
+    // And for numeric IDs, without boxing the keys:
+    StripedLongMap<Session> sessionsById = new StripedLongMap<>(64);
+    sessionsById.put(sessionId, session);
+
+
+    // A real ConcurrentHashSet
+
+    // Section 63.1 declares Set<String> threadSafeSet = new ConcurrentHashSet<String>(), but the JDK has no such class.
+    // What it has is ConcurrentHashMap.newKeySet(), a Set view of a ConcurrentHashMap whose values are all
+    // Boolean.TRUE. The class below gives that a name, so the line from Section 63.1 works, and adds a constructor that
+    // presizes the map for the expected number of elements, which saves all the intermediate resizes when filling a
+    // big set. Iteration is weakly consistent and never throws ConcurrentModificationException, and the spliterator
+    // splits, so parallelStream() works over it.
+
+    // removeAll() is overridden because AbstractSet.removeAll() may call contains() on the argument once per element of
+    // the set, which is quadratic if the argument is a List.
+    public class ConcurrentHashSet<E> extends AbstractSet<E> {
+
+        private final Set<E> elements;
+
+        public ConcurrentHashSet() {
+            elements = ConcurrentHashMap.newKeySet();
+        }
+
+        public ConcurrentHashSet(int expectedSize) {
+            elements = ConcurrentHashMap.newKeySet(expectedSize);
+        }
+
+        @Override
+        public boolean add(E element) {
+            return elements.add(element);
+        }
+
+        @Override
+        public boolean remove(Object element) {
+            return elements.remove(element);
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            return elements.contains(element);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> toRemove) {
+            boolean changed = false;
+            for (Object element : toRemove) {
+                changed |= elements.remove(element);
+            }
+            return changed;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return elements.iterator();
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return elements.spliterator();
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+
+        @Override
+        public void clear() {
+            elements.clear();
+        }
+    }
+
+    // A lock-free set of longs
+
+    // For hundreds of millions of numeric IDs, a Set<Long> costs a Long and a map node per element, several times the
+    // 8 bytes of the ID itself. A long-specialized set can keep the IDs in a single AtomicLongArray, using open
+    // addressing: an ID is stored in the first free slot at or after its home slot, and found by probing from its home
+    // slot until either the ID or an empty slot shows up. Inserting is a compareAndSet() from empty to the ID, so no
+    // locks are needed; two threads can only interfere when they want the same slot, and then the loser simply looks
+    // at what the winner wrote.
+
+    // Keeping that lock-free has some costs:
+    // * The capacity is fixed when the set is created, since a lock-free resize is far more involved. Size it at about
+    //   twice the number of IDs you expect; add() throws an IllegalStateException if the table is full.
+    // * A removed ID leaves a tombstone (a slot that lookups skip but inserts never reuse), otherwise a lookup could
+    //   stop at the hole and miss an ID stored after it. Sets with many removals eventually need rebuilding.
+
+    // The table does not store the IDs themselves but a mixed version of them: mix() spreads the bits of the ID so that
+    // sequential IDs do not end up in adjacent slots, and it is a bijection, so unmix() gets the ID back for iteration.
+    // The top bits of the mixed value are the home slot. Two mixed values are reserved to mark empty slots and
+    // tombstones; the two IDs that mix to them are kept in separate flags.
+
+    // Because the home slot is just the top bits of the mixed value, sorting a batch of mixed values sorts it by home
+    // slot. addAll() and removeAll() use that: the batch is sorted first, so the table is walked from start to end in
+    // order (much friendlier to the CPU caches than jumping around), duplicates in the batch become neighbours and
+    // are skipped without touching the table, and parallelAddAll() can hand each thread its own stretch of the table,
+    // so that threads almost never compete for the same slots.
+    import java.util.Arrays;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.RecursiveAction;
+    import java.util.concurrent.atomic.AtomicBoolean;
+    import java.util.concurrent.atomic.AtomicLongArray;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.function.LongConsumer;
+    import java.util.stream.LongStream;
+    import java.util.stream.StreamSupport;
+
+    public class ConcurrentLongHashSet {
+
+        private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+        private static final long INVERSE = inverse(MULTIPLIER);
+
+        private static final long EMPTY = 0;
+        private static final long REMOVED = 1;
+
+        // A batch smaller than this is not worth splitting
+        private static final int BULK_BATCH = 1 << 14;
+
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final int shift;
+        private final LongAdder size = new LongAdder();
+
+        // The IDs whose mixed values are EMPTY and REMOVED
+        private final AtomicBoolean containsEmptyKey = new AtomicBoolean();
+        private final AtomicBoolean containsRemovedKey = new AtomicBoolean();
+
+        // capacity is rounded up to a power of two
+        public ConcurrentLongHashSet(int capacity) {
+            if (capacity < 2 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity out of range: " + capacity);
+            }
+            int tableSize = Integer.highestOneBit(capacity - 1) << 1;
+            slots = new AtomicLongArray(tableSize);
+            mask = tableSize - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        }
+
+        // The multiplicative inverse modulo 2^64, by Newton's method: each step doubles the number of correct bits
+        private static long inverse(long odd) {
+            long inverse = odd;
+            for (int i = 0; i < 5; i++) {
+                inverse *= 2 - odd * inverse;
+            }
+            return inverse;
+        }
+
+        // Both steps can be undone: x ^ (x >>> 32) is its own inverse, and the multiplier is odd
+        static long mix(long key) {
+            return (key ^ (key >>> 32)) * MULTIPLIER;
+        }
+
+        static long unmix(long mixed) {
+            long x = mixed * INVERSE;
+            return x ^ (x >>> 32);
+        }
+
+        private int homeSlot(long mixed) {
+            return (int) (mixed >>> shift);
+        }
+
+        public boolean add(long key) {
+            return addMixed(mix(key));
+        }
+
+        public boolean contains(long key) {
+            long mixed = mix(key);
+            if (mixed == EMPTY || mixed == REMOVED) {
+                return specialFlag(mixed).get();
+            }
+            for (int i = homeSlot(mixed), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long current = slots.get(i);
+                if (current == mixed) {
+                    return true;
+                }
+                if (current == EMPTY) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        public boolean remove(long key) {
+            return removeMixed(mix(key));
+        }
+
+        public long size() {
+            return size.sum();
+        }
+
+        private AtomicBoolean specialFlag(long mixed) {
+            return mixed == EMPTY ? containsEmptyKey : containsRemovedKey;
+        }
+
+        private boolean addMixed(long mixed) {
+            if (mixed == EMPTY || mixed == REMOVED) {
+                boolean added = specialFlag(mixed).compareAndSet(false, true);
+                if (added) {
+                    size.increment();
+                }
+                return added;
+            }
+            for (int i = homeSlot(mixed), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long current = slots.get(i);
+                if (current == EMPTY) {
+                    if (slots.compareAndSet(i, EMPTY, mixed)) {
+                        size.increment();
+                        return true;
+                    }
+                    // Another thread took the slot first. If it stored the same ID we are done, otherwise keep probing.
+                    current = slots.get(i);
+                }
+                if (current == mixed) {
+                    return false;
+                }
+            }
+            throw new IllegalStateException("ConcurrentLongHashSet is full: capacity " + (mask + 1));
+        }
+
+        private boolean removeMixed(long mixed) {
+            if (mixed == EMPTY || mixed == REMOVED) {
+                boolean removed = specialFlag(mixed).compareAndSet(true, false);
+                if (removed) {
+                    size.decrement();
+                }
+                return removed;
+            }
+            for (int i = homeSlot(mixed), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long current = slots.get(i);
+                if (current == mixed) {
+                    // If this fails, another thread removed it first
+                    boolean removed = slots.compareAndSet(i, mixed, REMOVED);
+                    if (removed) {
+                        size.decrement();
+                    }
+                    return removed;
+                }
+                if (current == EMPTY) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        // Mixes the keys and sorts them by home slot. Flipping the sign bit makes the signed sort order match the
+        // unsigned order of the top bits.
+        private static long[] sortedMixed(long[] keys, boolean parallel) {
+            long[] sorted = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                sorted[i] = mix(keys[i]) ^ Long.MIN_VALUE;
+            }
+            if (parallel) {
+                Arrays.parallelSort(sorted);
+            } else {
+                Arrays.sort(sorted);
+            }
+            return sorted;
+        }
+
+        // Returns the number of keys that were not in the set yet
+        public int addAll(long[] keys) {
+            return addSorted(sortedMixed(keys, false), 0, keys.length);
+        }
+
+        public int removeAll(long[] keys) {
+            long[] sorted = sortedMixed(keys, false);
+            int removed = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if ((i == 0 || sorted[i] != sorted[i - 1]) && removeMixed(sorted[i] ^ Long.MIN_VALUE)) {
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        // Like addAll(), with the sorting and the inserting done in the given pool
+        public int parallelAddAll(ForkJoinPool pool, long[] keys) {
+            return pool.submit(() -> {
+                // Run from inside the pool, parallelSort() uses the pool's threads rather than the common pool
+                long[] sorted = sortedMixed(keys, true);
+                BulkAddTask task = new BulkAddTask(sorted, 0, sorted.length);
+                task.invoke();
+                return task.added;
+            }).join();
+        }
+
+        private int addSorted(long[] sorted, int fromInclusive, int toExclusive) {
+            int added = 0;
+            for (int i = fromInclusive; i < toExclusive; i++) {
+                if ((i == 0 || sorted[i] != sorted[i - 1]) && addMixed(sorted[i] ^ Long.MIN_VALUE)) {
+                    added++;
+                }
+            }
+            return added;
+        }
+
+        // Each leaf inserts a contiguous run of the sorted batch, which lands in its own stretch of the table
+        private final class BulkAddTask extends RecursiveAction {
+
+            private final long[] sorted;
+            private final int minInclusive, maxExclusive;
+            private int added;
+
+            BulkAddTask(long[] sorted, int minInclusive, int maxExclusive) {
+                this.sorted = sorted;
+                this.minInclusive = minInclusive;
+                this.maxExclusive = maxExclusive;
+            }
+
+            @Override
+            protected void compute() {
+                if (maxExclusive - minInclusive > BULK_BATCH) {
+                    int mid = (minInclusive + maxExclusive) >>> 1;
+                    BulkAddTask leftTask = new BulkAddTask(sorted, minInclusive, mid);
+                    BulkAddTask rightTask = new BulkAddTask(sorted, mid, maxExclusive);
+
+                    leftTask.fork();
+                    rightTask.compute();
+                    leftTask.join();
+
+                    added = leftTask.added + rightTask.added;
+                } else {
+                    added = addSorted(sorted, minInclusive, maxExclusive);
+                }
+            }
+        }
+
+        // Weakly consistent: sees every key that was in the set for the whole iteration, and may or may not see keys
+        // added or removed meanwhile. Splits by table range, so parallel streams divide the table between threads.
+        public Spliterator.OfLong spliterator() {
+            return new SlotSpliterator(0, mask + 1, 0);
+        }
+
+        public LongStream stream() {
+            return StreamSupport.longStream(spliterator(), false);
+        }
+
+        public LongStream parallelStream() {
+            return StreamSupport.longStream(spliterator(), true);
+        }
+
+        private final class SlotSpliterator implements Spliterator.OfLong {
+
+            private int index;
+            private final int end;
+            // Only one of the spliterators reports the two special keys: 0 and 1 are still to check, 2 means done
+            private int specialKey;
+
+            SlotSpliterator(int index, int end, int specialKey) {
+                this.index = index;
+                this.end = end;
+                this.specialKey = specialKey;
+            }
+
+            @Override
+            public boolean tryAdvance(LongConsumer action) {
+                while (specialKey < 2) {
+                    long mixed = specialKey++ == 0 ? EMPTY : REMOVED;
+                    if (specialFlag(mixed).get()) {
+                        action.accept(unmix(mixed));
+                        return true;
+                    }
+                }
+                while (index < end) {
+                    long current = slots.get(index++);
+                    if (current != EMPTY && current != REMOVED) {
+                        action.accept(unmix(current));
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Spliterator.OfLong trySplit() {
+                int mid = (index + end) >>> 1;
+                if (mid - index < BULK_BATCH) {
+                    return null;
+                }
+                SlotSpliterator prefix = new SlotSpliterator(index, mid, specialKey);
+                specialKey = 2;
+                index = mid;
+                return prefix;
+            }
+
+            @Override
+            public long estimateSize() {
+                // Assume the table is about half full
+                return (end - index) / 2;
+            }
+
+            @Override
+            public int characteristics() {
+                return DISTINCT | NONNULL | CONCURRENT;
+            }
+        }
+    }
+
+    // The line from Section 63.1 now compiles, and big sets can be presized:
+    Set<String> threadSafeSet = new ConcurrentHashSet<String>();
+    Set<String> seenUrls = new ConcurrentHashSet<>(10_000_000);
+
+    // Deduplicating a stream of numeric IDs, with room for about 250M of them in 4GB
+    ConcurrentLongHashSet seenIds = new ConcurrentLongHashSet(1 << 29);
+    int newIds = seenIds.parallelAddAll(pool, idBatch);
+    long evenIds = seenIds.parallelStream().filter(id -> id % 2 == 0).count();
+
+
+    // Copy-on-write without copying everything
+
+    // In ThreadSafeAndConcurrent the ModifierRunnable appends 50,000 elements to a CopyOnWriteArrayList. Every add()
+    // copies the whole backing array, so filling the list copies 50,000 * 50,000 / 2 elements in total: quadratic time
+    // and a lot of garbage. What the IteratorRunnable needs is only the snapshot guarantee, that an iterator sees the
+    // list as it was when the iterator was created, and that does not require copying everything.
+
+    // A persistent vector (the structure behind Clojure's and Scala's immutable vectors) provides it much more cheaply.
+    // The elements are kept in a tree of 32-element arrays, plus a "tail" array of up to 32 elements at the end. A
+    // version of the list is never modified; a write builds a new version that shares everything it did not touch
+    // with the old one:
+    // * append copies only the tail, and every 32 appends moves the full tail into the tree, copying one path of
+    //   32-element nodes from the root (log32(n) nodes, so 4 for a million elements)
+    // * set copies the path to the changed element in the same way
+    // * get follows that path, so it is O(log32 n), which for practical sizes is a handful of array loads
+    // A snapshot is therefore just a reference to the current version, O(1), and it never changes afterwards.
+
+    // Writers are serialized with a lock, like in CopyOnWriteArrayList, and publish the new version through a volatile
+    // field. Readers never lock. Inserting or removing in the middle would shift all later elements, so those rebuild
+    // the list, which is what CopyOnWriteArrayList does for every write.
+    import java.util.AbstractList;
+    import java.util.Arrays;
+    import java.util.Comparator;
+    import java.util.ListIterator;
+    import java.util.RandomAccess;
+    import java.util.function.Predicate;
+    import java.util.function.UnaryOperator;
+
+    public class ChunkedCopyOnWriteList<E> extends AbstractList<E> implements RandomAccess {
+
+        private final Object lock = new Object();
+        private volatile PersistentVector<E> current = PersistentVector.empty();
+
+        public ChunkedCopyOnWriteList() {
+        }
+
+        public ChunkedCopyOnWriteList(Collection<? extends E> elements) {
+            addAll(elements);
+        }
+
+        // An immutable view of the list as it is now
+        public List<E> snapshot() {
+            return current;
+        }
+
+        @Override
+        public E get(int index) {
+            return current.get(index);
+        }
+
+        @Override
+        public int size() {
+            return current.size();
+        }
+
+        @Override
+        public boolean add(E element) {
+            synchronized (lock) {
+                current = current.append(element);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends E> elements) {
+            synchronized (lock) {
+                PersistentVector<E> vector = current;
+                for (E element : elements) {
+                    vector = vector.append(element);
+                }
+                current = vector;
+            }
+            return !elements.isEmpty();
+        }
+
+        @Override
+        public E set(int index, E element) {
+            synchronized (lock) {
+                PersistentVector<E> vector = current;
+                E previous = vector.get(index);
+                current = vector.with(index, element);
+                return previous;
+            }
+        }
+
+        @Override
+        public void add(int index, E element) {
+            synchronized (lock) {
+                PersistentVector<E> vector = current;
+                if (index == vector.size()) {
+                    current = vector.append(element);
+                    return;
+                }
+                Objects.checkIndex(index, vector.size());
+                List<E> rebuilt = new ArrayList<>(vector);
+                rebuilt.add(index, element);
+                current = PersistentVector.of(rebuilt);
+            }
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends E> elements) {
+            synchronized (lock) {
+                PersistentVector<E> vector = current;
+                if (index == vector.size()) {
+                    return addAll(elements);
+                }
+                Objects.checkIndex(index, vector.size());
+                List<E> rebuilt = new ArrayList<>(vector);
+                rebuilt.addAll(index, elements);
+                current = PersistentVector.of(rebuilt);
+                return !elements.isEmpty();
+            }
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<E> operator) {
+            Objects.requireNonNull(operator);
+            synchronized (lock) {
+                PersistentVector<E> replaced = PersistentVector.empty();
+                for (E element : current) {
+                    replaced = replaced.append(operator.apply(element));
+                }
+                current = replaced;
+            }
+        }
+
+        // Also what Collections.sort(list) ends up calling
+        @Override
+        @SuppressWarnings("unchecked")
+        public void sort(Comparator<? super E> comparator) {
+            synchronized (lock) {
+                Object[] elements = current.toArray();
+                Arrays.sort(elements, (Comparator<Object>) comparator);
+                current = PersistentVector.of((List<E>) Arrays.asList(elements));
+            }
+        }
+
+        @Override
+        public E remove(int index) {
+            synchronized (lock) {
+                List<E> rebuilt = new ArrayList<>(current);
+                E removed = rebuilt.remove(index);
+                current = PersistentVector.of(rebuilt);
+                return removed;
+            }
+        }
+
+        @Override
+        public boolean remove(Object element) {
+            synchronized (lock) {
+                int index = current.indexOf(element);
+                if (index < 0) {
+                    return false;
+                }
+                remove(index);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super E> filter) {
+            Objects.requireNonNull(filter);
+            synchronized (lock) {
+                List<E> rebuilt = new ArrayList<>(current);
+                if (!rebuilt.removeIf(filter)) {
+                    return false;
+                }
+                current = PersistentVector.of(rebuilt);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> elements) {
+            Objects.requireNonNull(elements);
+            return removeIf(elements::contains);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> elements) {
+            Objects.requireNonNull(elements);
+            return removeIf(element -> !elements.contains(element));
+        }
+
+        @Override
+        public void clear() {
+            synchronized (lock) {
+                current = PersistentVector.empty();
+            }
+        }
+
+        // Iterates over the version that was current when iterator() was called, like CopyOnWriteArrayList. The
+        // iterators do not support remove(), set() or add().
+        @Override
+        public Iterator<E> iterator() {
+            return Collections.unmodifiableList(current).iterator();
+        }
+
+        @Override
+        public ListIterator<E> listIterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator<E> listIterator(int index) {
+            return Collections.unmodifiableList(current).listIterator(index);
+        }
+
+        // Unlike CopyOnWriteArrayList's, the sub list is a read-only view of the current version: it cannot be written
+        // to, and later writes to the list don't show up in it
+        @Override
+        public List<E> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(current.subList(fromIndex, toIndex));
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return current.spliterator();
+        }
+    }
+
+    // One immutable version of the list
+    final class PersistentVector<E> extends AbstractList<E> implements RandomAccess {
+
+        private static final int BITS = 5;
+        private static final int WIDTH = 1 << BITS;
+        private static final int MASK = WIDTH - 1;
+
+        private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH],
+                new Object[0]);
+
+        private final int size;
+        // The number of bits of the index used below the root's level
+        private final int shift;
+        private final Object[] root;
+        private final Object[] tail;
+
+        private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+            this.size = size;
+            this.shift = shift;
+            this.root = root;
+            this.tail = tail;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E> PersistentVector<E> empty() {
+            return (PersistentVector<E>) EMPTY;
+        }
+
+        static <E> PersistentVector<E> of(Collection<? extends E> elements) {
+            PersistentVector<E> vector = empty();
+            for (E element : elements) {
+                vector = vector.append(element);
+            }
+            return vector;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // The index of the first element in the tail
+        private int tailOffset() {
+            return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+        }
+
+        private Object[] leafFor(int index) {
+            if (index >= tailOffset()) {
+                return tail;
+            }
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                node = (Object[]) node[(index >>> level) & MASK];
+            }
+            return node;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            Objects.checkIndex(index, size);
+            return (E) leafFor(index)[index & MASK];
+        }
+
+        PersistentVector<E> append(E element) {
+            // Room in the tail: copy just the tail
+            if (size - tailOffset() < WIDTH) {
+                Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+                newTail[tail.length] = element;
+                return new PersistentVector<>(size + 1, shift, root, newTail);
+            }
+
+            // The tail is full: move it into the tree and start a new tail
+            Object[] newRoot;
+            int newShift = shift;
+            if ((size >>> BITS) > (1 << shift)) {
+                // The tree is full too, so it grows a level
+                newRoot = new Object[WIDTH];
+                newRoot[0] = root;
+                newRoot[1] = newPath(shift, tail);
+                newShift += BITS;
+            } else {
+                newRoot = pushTail(shift, root, tail);
+            }
+            return new PersistentVector<>(size + 1, newShift, newRoot, new Object[] { element });
+        }
+
+        private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+            int childIndex = ((size - 1) >>> level) & MASK;
+            Object[] copy = parent.clone();
+            Object[] inserted;
+            if (level == BITS) {
+                inserted = tailNode;
+            } else {
+                Object[] child = (Object[]) parent[childIndex];
+                inserted = child != null ? pushTail(level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+            }
+            copy[childIndex] = inserted;
+            return copy;
+        }
+
+        private static Object[] newPath(int level, Object[] node) {
+            if (level == 0) {
+                return node;
+            }
+            Object[] path = new Object[WIDTH];
+            path[0] = newPath(level - BITS, node);
+            return path;
+        }
+
+        // A copy with the element at index replaced. (Not List.set(), which would have to modify this version.)
+        PersistentVector<E> with(int index, E element) {
+            Objects.checkIndex(index, size);
+            if (index >= tailOffset()) {
+                Object[] newTail = tail.clone();
+                newTail[index & MASK] = element;
+                return new PersistentVector<>(size, shift, root, newTail);
+            }
+            return new PersistentVector<>(size, shift, setInTree(shift, root, index, element), tail);
+        }
+
+        private static Object[] setInTree(int level, Object[] node, int index, Object element) {
+            Object[] copy = node.clone();
+            if (level == 0) {
+                copy[index & MASK] = element;
+            } else {
+                int childIndex = (index >>> level) & MASK;
+                copy[childIndex] = setInTree(level - BITS, (Object[]) node[childIndex], index, element);
+            }
+            return copy;
+        }
+    }
+
+    // In ThreadSafeAndConcurrent, the LIST can be declared as
+    public static final List<Integer> LIST = new ChunkedCopyOnWriteList<>();
+
+    // and the IteratorRunnable still never sees a ConcurrentModificationException, while the ModifierRunnable's loop
+    // now takes linear time.
+
+
+    // An append-only sequence of longs
+
+    // LIST holds boxed Integers, so every pass of the IteratorRunnable follows 50,000 pointers to 50,000 small objects
+    // scattered around the heap and unboxes each one. Only appends ever happen to it, so it can be replaced by
+    // something much simpler than a general concurrent List: primitive long[] segments, filled one after the other.
+
+    // Appended elements are never changed again, so a reader only needs to know how many elements are safe to read:
+    // * a writer stores the element in its segment first and then increments the volatile size
+    // * a reader reads size first, and then every element below it is guaranteed to be visible (the volatile write and
+    //   read of size create the happens-before edge), including any segment that was created for it
+    // New segments are published through the volatile segments array in the same way, before size is incremented. So
+    // a snapshot is just the (segments, size) pair, O(1), and a sum() is a sequential sweep over a few large primitive
+    // arrays, which is about as cache- and prefetcher-friendly as memory access gets.
+
+    // Appends take a lock, so any number of threads may append.
+    import java.util.NoSuchElementException;
+    import java.util.PrimitiveIterator;
+    import java.util.function.LongConsumer;
+
+    public class ConcurrentLongSequence {
+
+        private static final int SEGMENT_SHIFT = 14;
+        private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+        private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+        private volatile long[][] segments = new long[8][];
+        private volatile long size;
+
+        public long size() {
+            return size;
+        }
+
+        public synchronized void append(long value) {
+            long index = size;
+            segmentForAppend(index)[(int) (index & SEGMENT_MASK)] = value;
+            size = index + 1;
+        }
+
+        // Appends the values in bulk, and makes them visible all at once
+        public synchronized void appendAll(long[] values) {
+            long index = size;
+            for (int copied = 0; copied < values.length; ) {
+                int offset = (int) ((index + copied) & SEGMENT_MASK);
+                int length = Math.min(values.length - copied, SEGMENT_SIZE - offset);
+                System.arraycopy(values, copied, segmentForAppend(index + copied), offset, length);
+                copied += length;
+            }
+            size = index + values.length;
+        }
+
+        // Must hold the lock
+        private long[] segmentForAppend(long index) {
+            int segment = (int) (index >>> SEGMENT_SHIFT);
+            long[][] segments = this.segments;
+            if (segment == segments.length) {
+                segments = Arrays.copyOf(segments, segments.length * 2);
+            }
+            if (segments[segment] == null) {
+                segments[segment] = new long[SEGMENT_SIZE];
+                // Publish the new segment (and the grown array) before size makes it readable
+                this.segments = segments;
+            }
+            return segments[segment];
+        }
+
+        public long get(long index) {
+            long size = this.size;
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+            }
+            return segments[(int) (index >>> SEGMENT_SHIFT)][(int) (index & SEGMENT_MASK)];
+        }
+
+        public Snapshot snapshot() {
+            // size must be read before segments
+            long size = this.size;
+            return new Snapshot(segments, size);
+        }
+
+        public long sum() {
+            return snapshot().sum();
+        }
+
+        // The first size elements of the sequence, which never change
+        public static final class Snapshot {
+
+            private final long[][] segments;
+            private final long size;
+
+            private Snapshot(long[][] segments, long size) {
+                this.segments = segments;
+                this.size = size;
+            }
+
+            public long size() {
+                return size;
+            }
+
+            public long sum() {
+                long sum = 0;
+                long remaining = size;
+                for (int s = 0; remaining > 0; s++) {
+                    long[] segment = segments[s];
+                    int length = (int) Math.min(remaining, SEGMENT_SIZE);
+                    for (int i = 0; i < length; i++) {
+                        sum += segment[i];
+                    }
+                    remaining -= length;
+                }
+                return sum;
+            }
+
+            public void forEach(LongConsumer action) {
+                long remaining = size;
+                for (int s = 0; remaining > 0; s++) {
+                    long[] segment = segments[s];
+                    int length = (int) Math.min(remaining, SEGMENT_SIZE);
+                    for (int i = 0; i < length; i++) {
+                        action.accept(segment[i]);
+                    }
+                    remaining -= length;
+                }
+            }
+
+            public PrimitiveIterator.OfLong iterator() {
+                return new PrimitiveIterator.OfLong() {
+                    private long index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < size;
+                    }
+
+                    @Override
+                    public long nextLong() {
+                        if (index >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        long value = segments[(int) (index >>> SEGMENT_SHIFT)][(int) (index & SEGMENT_MASK)];
+                        index++;
+                        return value;
+                    }
+                };
+            }
+        }
+    }
+
+    // The two runnables from ThreadSafeAndConcurrent, on top of it:
+    public static final ConcurrentLongSequence SEQUENCE = new ConcurrentLongSequence();
+
+    public static final class LongModifierRunnable implements Runnable {
+        @Override
+        public void run() {
+            for (int i = 0; i < 50000; i++) {
+                SEQUENCE.append(i);
+            }
+        }
+    }
+
+    public static final class LongIteratorRunnable implements Runnable {
+        @Override
+        public void run() {
+            for (int i = 0; i < 10000; i++) {
+                System.out.println(SEQUENCE.sum());
+            }
+        }
+    }
+
+
+    // Finding the contended collections
+
+    // Before replacing the Collections.synchronizedList/Set/Map wrappers from Section 63.1 with concurrent collections,
+    // it helps to know which of them actually cost time. ContentionProfiler hands out wrappers that behave like the
+    // synchronized ones (every method runs while holding the wrapper's lock), but measure for every operation:
+    // * wait time: from asking for the lock until getting it
+    // * hold time: from getting the lock until releasing it
+    // * contended acquisitions: the lock was held by another thread at the time. This is detected with tryLock(),
+    //   which is why the wrappers use a ReentrantLock instead of a monitor.
+    // For contended acquisitions it also records where the call came from (the first stack frame outside the
+    // profiler and the JDK), so the report can point at the code that fights over the collection. Walking the stack
+    // is relatively expensive, but it only happens on the slow path, where the thread was going to wait anyway.
+
+    // There is one difference from the Collections.synchronized wrappers: those must be iterated inside a
+    // synchronized (collection) block, which cannot be measured (or combined with a ReentrantLock), so instead the
+    // profiled wrappers iterate over a copy taken under the lock. Compound actions that the collection interfaces don't
+    // offer (check-then-act, or iterating without a copy) run under the lock with withLock(), which is why the
+    // factories return ProfiledList, ProfiledSet and ProfiledMap instead of plain List, Set and Map.
+    import java.util.Comparator;
+    import java.util.ListIterator;
+    import java.util.concurrent.atomic.LongAccumulator;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.concurrent.locks.ReentrantLock;
+    import java.util.function.BiFunction;
+    import java.util.function.Function;
+    import java.util.function.Predicate;
+    import java.util.function.Supplier;
+    import java.util.function.UnaryOperator;
+
+    public final class ContentionProfiler {
+
+        private final Map<String, CollectionStats> collections = new ConcurrentHashMap<>();
+
+        public <E> ProfiledList<E> synchronizedList(String name, List<E> list) {
+            return new LockedList<>(new ProfiledLock(statsFor(name)), list);
+        }
+
+        public <E> ProfiledSet<E> synchronizedSet(String name, Set<E> set) {
+            return new LockedSet<>(new ProfiledLock(statsFor(name)), set);
+        }
+
+        public <K, V> ProfiledMap<K, V> synchronizedMap(String name, Map<K, V> map) {
+            return new LockedMap<>(new ProfiledLock(statsFor(name)), map);
+        }
+
+        public interface ProfiledCollection<C> {
+
+            // Runs the action on the underlying collection while holding the wrapper's lock
+            <R> R withLock(Function<? super C, ? extends R> action);
+        }
+
+        public interface ProfiledList<E> extends List<E>, ProfiledCollection<List<E>> {
+        }
+
+        public interface ProfiledSet<E> extends Set<E>, ProfiledCollection<Set<E>> {
+        }
+
+        public interface ProfiledMap<K, V> extends Map<K, V>, ProfiledCollection<Map<K, V>> {
+        }
+
+        private CollectionStats statsFor(String name) {
+            return collections.computeIfAbsent(name, CollectionStats::new);
+        }
+
+        // Collections, most total wait time first
+        public List<CollectionStats> snapshot() {
+            List<CollectionStats> snapshot = new ArrayList<>(collections.values());
+            snapshot.sort(Comparator.comparingLong(CollectionStats::getWaitNanos).reversed());
+            return snapshot;
+        }
+
+        public String report() {
+            StringBuilder report = new StringBuilder();
+            for (CollectionStats collection : snapshot()) {
+                report.append(String.format("%s: %d ops, %d contended, wait %.3f ms, hold %.3f ms%n",
+                        collection.getName(), collection.getOperations(), collection.getContended(),
+                        collection.getWaitNanos() / 1e6, collection.getHoldNanos() / 1e6));
+                collection.operations.forEach((operation, stats) -> report.append(String.format(
+                        "    %-16s %10d ops %10d contended  wait %10.3f ms (max %.3f)  hold %10.3f ms%n", operation,
+                        stats.count.sum(), stats.contended.sum(), stats.waitNanos.sum() / 1e6,
+                        stats.maxWaitNanos.get() / 1e6, stats.holdNanos.sum() / 1e6)));
+                collection.getHottestCallSites(5).forEach(callSite -> report.append(String.format(
+                        "    contended at %s (%d times)%n", callSite.getKey(), callSite.getValue())));
+            }
+            return report.toString();
+        }
+
+        public static final class CollectionStats {
+
+            private final String name;
+            private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+            private final Map<String, LongAdder> contendedCallSites = new ConcurrentHashMap<>();
+
+            CollectionStats(String name) {
+                this.name = name;
+            }
+
+            void record(String operation, boolean contended, long waitNanos, long holdNanos) {
+                OperationStats stats = operations.computeIfAbsent(operation, o -> new OperationStats());
+                stats.count.increment();
+                stats.waitNanos.add(waitNanos);
+                stats.holdNanos.add(holdNanos);
+                stats.maxWaitNanos.accumulate(waitNanos);
+                if (contended) {
+                    stats.contended.increment();
+                    contendedCallSites.computeIfAbsent(callSite(), c -> new LongAdder()).increment();
+                }
+            }
+
+            private static String callSite() {
+                return StackWalker.getInstance().walk(frames -> frames
+                        .filter(frame -> !frame.getClassName().startsWith(ContentionProfiler.class.getName())
+                                && !frame.getClassName().startsWith("java."))
+                        .findFirst()
+                        .map(frame -> frame.getClassName() + "." + frame.getMethodName() + ":" + frame.getLineNumber())
+                        .orElse("unknown"));
+            }
+
+            public String getName() {
+                return name;
+            }
+
+            public long getOperations() {
+                return operations.values().stream().mapToLong(stats -> stats.count.sum()).sum();
+            }
+
+            public long getContended() {
+                return operations.values().stream().mapToLong(stats -> stats.contended.sum()).sum();
+            }
+
+            public long getWaitNanos() {
+                return operations.values().stream().mapToLong(stats -> stats.waitNanos.sum()).sum();
+            }
+
+            public long getHoldNanos() {
+                return operations.values().stream().mapToLong(stats -> stats.holdNanos.sum()).sum();
+            }
+
+            public List<Map.Entry<String, Long>> getHottestCallSites(int limit) {
+                List<Map.Entry<String, Long>> callSites = new ArrayList<>();
+                contendedCallSites.forEach((site, count) -> callSites.add(Map.entry(site, count.sum())));
+                callSites.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+                return callSites.subList(0, Math.min(limit, callSites.size()));
+            }
+        }
+
+        private static final class OperationStats {
+            final LongAdder count = new LongAdder();
+            final LongAdder contended = new LongAdder();
+            final LongAdder waitNanos = new LongAdder();
+            final LongAdder holdNanos = new LongAdder();
+            final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+        }
+
+        private static final class ProfiledLock {
+
+            private final ReentrantLock lock = new ReentrantLock();
+            private final CollectionStats stats;
+
+            ProfiledLock(CollectionStats stats) {
+                this.stats = stats;
+            }
+
+            <R> R call(String operation, Supplier<R> body) {
+                long start = System.nanoTime();
+                boolean contended = !lock.tryLock();
+                if (contended) {
+                    lock.lock();
+                }
+                long acquired = System.nanoTime();
+                try {
+                    return body.get();
+                } finally {
+                    long released = System.nanoTime();
+                    lock.unlock();
+                    stats.record(operation, contended, acquired - start, released - acquired);
+                }
+            }
+        }
+
+        private static final class LockedList<E> extends AbstractList<E> implements ProfiledList<E>, RandomAccess {
+
+            private final ProfiledLock lock;
+            private final List<E> list;
+
+            LockedList(ProfiledLock lock, List<E> list) {
+                this.lock = lock;
+                this.list = list;
+            }
+
+            @Override
+            public <R> R withLock(Function<? super List<E>, ? extends R> action) {
+                return lock.call("withLock", () -> action.apply(list));
+            }
+
+            @Override
+            public int size() {
+                return lock.call("size", list::size);
+            }
+
+            @Override
+            public boolean contains(Object element) {
+                return lock.call("contains", () -> list.contains(element));
+            }
+
+            @Override
+            public int indexOf(Object element) {
+                return lock.call("indexOf", () -> list.indexOf(element));
+            }
+
+            @Override
+            public E get(int index) {
+                return lock.call("get", () -> list.get(index));
+            }
+
+            @Override
+            public E set(int index, E element) {
+                return lock.call("set", () -> list.set(index, element));
+            }
+
+            @Override
+            public boolean add(E element) {
+                return lock.call("add", () -> list.add(element));
+            }
+
+            @Override
+            public void add(int index, E element) {
+                lock.call("add", () -> {
+                    list.add(index, element);
+                    return null;
+                });
+            }
+
+            @Override
+            public boolean addAll(Collection<? extends E> elements) {
+                return lock.call("addAll", () -> list.addAll(elements));
+            }
+
+            @Override
+            public E remove(int index) {
+                return lock.call("remove", () -> list.remove(index));
+            }
+
+            @Override
+            public boolean remove(Object element) {
+                return lock.call("remove", () -> list.remove(element));
+            }
+
+            @Override
+            public void clear() {
+                lock.call("clear", () -> {
+                    list.clear();
+                    return null;
+                });
+            }
+
+            @Override
+            public boolean removeAll(Collection<?> elements) {
+                return lock.call("removeAll", () -> list.removeAll(elements));
+            }
+
+            @Override
+            public boolean retainAll(Collection<?> elements) {
+                return lock.call("retainAll", () -> list.retainAll(elements));
+            }
+
+            @Override
+            public boolean removeIf(Predicate<? super E> filter) {
+                return lock.call("removeIf", () -> list.removeIf(filter));
+            }
+
+            @Override
+            public void replaceAll(UnaryOperator<E> operator) {
+                lock.call("replaceAll", () -> {
+                    list.replaceAll(operator);
+                    return null;
+                });
+            }
+
+            @Override
+            public void sort(Comparator<? super E> comparator) {
+                lock.call("sort", () -> {
+                    list.sort(comparator);
+                    return null;
+                });
+            }
+
+            // Iterating, comparing and taking a sublist through AbstractList would lock once per element, and the
+            // list could change in between. Iterators and equals() work on a copy taken under the lock (so equals()
+            // never holds two locks at once), hashCode() holds the lock throughout, and a sublist is a view that
+            // shares the lock, as with Collections.synchronizedList.
+            private List<E> copy(String operation) {
+                return Collections.unmodifiableList(lock.call(operation, () -> new ArrayList<>(list)));
+            }
+
+            @Override
+            public Iterator<E> iterator() {
+                return copy("iterator").iterator();
+            }
+
+            @Override
+            public ListIterator<E> listIterator(int index) {
+                return copy("listIterator").listIterator(index);
+            }
+
+            @Override
+            public Spliterator<E> spliterator() {
+                return copy("spliterator").spliterator();
+            }
+
+            @Override
+            public List<E> subList(int fromIndex, int toIndex) {
+                return new LockedList<>(lock, lock.call("subList", () -> list.subList(fromIndex, toIndex)));
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other == this || copy("equals").equals(other);
+            }
+
+            @Override
+            public int hashCode() {
+                return lock.call("hashCode", list::hashCode);
+            }
+        }
+
+        private static final class LockedSet<E> extends AbstractSet<E> implements ProfiledSet<E> {
+
+            private final ProfiledLock lock;
+            private final Set<E> set;
+
+            LockedSet(ProfiledLock lock, Set<E> set) {
+                this.lock = lock;
+                this.set = set;
+            }
+
+            @Override
+            public <R> R withLock(Function<? super Set<E>, ? extends R> action) {
+                return lock.call("withLock", () -> action.apply(set));
+            }
+
+            @Override
+            public int size() {
+                return lock.call("size", set::size);
+            }
+
+            @Override
+            public boolean contains(Object element) {
+                return lock.call("contains", () -> set.contains(element));
+            }
+
+            @Override
+            public boolean add(E element) {
+                return lock.call("add", () -> set.add(element));
+            }
+
+            @Override
+            public boolean addAll(Collection<? extends E> elements) {
+                return lock.call("addAll", () -> set.addAll(elements));
+            }
+
+            @Override
+            public boolean remove(Object element) {
+                return lock.call("remove", () -> set.remove(element));
+            }
+
+            @Override
+            public void clear() {
+                lock.call("clear", () -> {
+                    set.clear();
+                    return null;
+                });
+            }
+
+            @Override
+            public boolean removeAll(Collection<?> elements) {
+                return lock.call("removeAll", () -> set.removeAll(elements));
+            }
+
+            @Override
+            public boolean retainAll(Collection<?> elements) {
+                return lock.call("retainAll", () -> set.retainAll(elements));
+            }
+
+            @Override
+            public boolean removeIf(Predicate<? super E> filter) {
+                return lock.call("removeIf", () -> set.removeIf(filter));
+            }
+
+            @Override
+            public Iterator<E> iterator() {
+                return Collections.unmodifiableList(lock.call("iterator", () -> new ArrayList<>(set))).iterator();
+            }
+        }
+
+        private static final class LockedMap<K, V> extends AbstractMap<K, V> implements ProfiledMap<K, V> {
+
+            private final ProfiledLock lock;
+            private final Map<K, V> map;
+
+            LockedMap(ProfiledLock lock, Map<K, V> map) {
+                this.lock = lock;
+                this.map = map;
+            }
+
+            @Override
+            public <R> R withLock(Function<? super Map<K, V>, ? extends R> action) {
+                return lock.call("withLock", () -> action.apply(map));
+            }
+
+            @Override
+            public int size() {
+                return lock.call("size", map::size);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return lock.call("containsKey", () -> map.containsKey(key));
+            }
+
+            @Override
+            public V get(Object key) {
+                return lock.call("get", () -> map.get(key));
+            }
+
+            @Override
+            public V put(K key, V value) {
+                return lock.call("put", () -> map.put(key, value));
+            }
+
+            @Override
+            public V putIfAbsent(K key, V value) {
+                return lock.call("putIfAbsent", () -> map.putIfAbsent(key, value));
+            }
+
+            @Override
+            public V getOrDefault(Object key, V defaultValue) {
+                return lock.call("getOrDefault", () -> map.getOrDefault(key, defaultValue));
+            }
+
+            @Override
+            public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+                return lock.call("computeIfAbsent", () -> map.computeIfAbsent(key, mappingFunction));
+            }
+
+            @Override
+            public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+                return lock.call("computeIfPresent", () -> map.computeIfPresent(key, remappingFunction));
+            }
+
+            @Override
+            public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+                return lock.call("compute", () -> map.compute(key, remappingFunction));
+            }
+
+            @Override
+            public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+                return lock.call("merge", () -> map.merge(key, value, remappingFunction));
+            }
+
+            @Override
+            public V replace(K key, V value) {
+                return lock.call("replace", () -> map.replace(key, value));
+            }
+
+            @Override
+            public boolean replace(K key, V oldValue, V newValue) {
+                return lock.call("replace", () -> map.replace(key, oldValue, newValue));
+            }
+
+            @Override
+            public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+                lock.call("replaceAll", () -> {
+                    map.replaceAll(function);
+                    return null;
+                });
+            }
+
+            @Override
+            public V remove(Object key) {
+                return lock.call("remove", () -> map.remove(key));
+            }
+
+            @Override
+            public boolean remove(Object key, Object value) {
+                return lock.call("remove", () -> map.remove(key, value));
+            }
+
+            @Override
+            public void clear() {
+                lock.call("clear", () -> {
+                    map.clear();
+                    return null;
+                });
+            }
+
+            @Override
+            public Set<Map.Entry<K, V>> entrySet() {
+                return Collections.unmodifiableSet(lock.call("entrySet", () -> {
+                    Set<Map.Entry<K, V>> copy = new HashSet<>();
+                    for (Map.Entry<K, V> entry : map.entrySet()) {
+                        copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                    }
+                    return copy;
+                }));
+            }
+        }
+    }
+
+    // Swap the wrappers in the places under suspicion, run the usual load, and look at the report:
+    ContentionProfiler profiler = new ContentionProfiler();
+    ContentionProfiler.ProfiledList<String> threadSafeList =
+            profiler.synchronizedList("pendingJobs", new ArrayList<>());
+    ContentionProfiler.ProfiledMap<String, String> threadSafeMap =
+            profiler.synchronizedMap("sessionCache", new HashMap<>());
+
+    // A compound action, measured like any other operation:
+    String firstJob = threadSafeList.withLock(jobs -> jobs.isEmpty() ? null : jobs.remove(0));
+
+    System.out.print(profiler.report());
+    // sessionCache: 1843021 ops, 412388 contended, wait 5123.402 ms, hold 310.221 ms
+    //     get                 1702113 ops     398117 contended  wait   4980.117 ms (max 12.018)  hold    280.402 ms
+    //     put                  140908 ops      14271 contended  wait    143.285 ms (max 3.551)  hold     29.819 ms
+    //     contended at com.example.SessionFilter.doFilter:57 (398117 times)
+    //     ...
+
+
+    // Loading values once: a small cache on top of ConcurrentHashMap
+
+    // The InsertIntoConcurrentHashMap example in Section 63.2 constructs the SomeObject before it knows whether it
+    // will be needed: when another thread already mapped the key, the new object is thrown away, and the caller has
+    // to sort out the race by itself. ConcurrentHashMap.computeIfAbsent only constructs the value once, but it runs
+    // the construction while holding the lock of the hash bin, so an expensive constructor blocks the other keys in
+    // that bin, and the mapping function may not touch the map itself.
+
+    // ConcurrentCache maps keys to CompletableFutures instead. Putting an empty future into the map is cheap, so the
+    // map's own locking only covers that, and the thread that managed to insert it runs the loader outside of any
+    // lock. Threads asking for the same key in the meantime find the future and wait for it, so every key is loaded
+    // once however many threads ask for it at the same time. If the loader fails, the future is removed again, so
+    // the next caller retries instead of receiving the same failure forever.
+
+    // The counters tell how well it works: hits, misses (loads), deduplicated loads (callers that waited for a load
+    // of another thread instead of starting their own) and wasted constructions (values passed to putIfAbsent that
+    // were thrown away because the key was already mapped, and loaded values thrown away because putIfAbsent got
+    // there first - this is the number to watch while migrating code like the example above).
+    // As with computeIfAbsent, a loader must not ask the same cache for its own key, it would wait for itself.
+    import java.util.concurrent.CompletableFuture;
+    import java.util.concurrent.CompletionException;
+    import java.util.concurrent.Executor;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.function.Function;
+
+    public class ConcurrentCache<K, V> {
+
+        private final ConcurrentHashMap<K, CompletableFuture<V>> map = new ConcurrentHashMap<>();
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder deduplicatedLoads = new LongAdder();
+        private final LongAdder wastedConstructions = new LongAdder();
+
+        // Returns the value of the key, loading it on the calling thread if it is not cached yet
+        public V get(K key, Function<? super K, ? extends V> loader) {
+            Objects.requireNonNull(loader);
+            while (true) {
+                CompletableFuture<V> future = map.get(key);
+                if (future == null) {
+                    CompletableFuture<V> created = new CompletableFuture<>();
+                    future = map.putIfAbsent(key, created);
+                    if (future == null) {
+                        misses.increment();
+                        return load(key, created, loader);
+                    }
+                }
+                if (future.isCompletedExceptionally()) {
+                    map.remove(key, future);
+                    continue;
+                }
+                if (future.isDone()) {
+                    hits.increment();
+                } else {
+                    deduplicatedLoads.increment();
+                }
+                return join(future);
+            }
+        }
+
+        // Returns the future value of the key, loading it on the executor if it is not cached yet
+        public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends V> loader, Executor executor) {
+            Objects.requireNonNull(loader);
+            while (true) {
+                CompletableFuture<V> future = map.get(key);
+                if (future == null) {
+                    CompletableFuture<V> created = new CompletableFuture<>();
+                    future = map.putIfAbsent(key, created);
+                    if (future == null) {
+                        misses.increment();
+                        try {
+                            executor.execute(() -> {
+                                try {
+                                    load(key, created, loader);
+                                } catch (RuntimeException | Error e) {
+                                    // already passed on to the callers through the future
+                                }
+                            });
+                        } catch (RuntimeException | Error e) {
+                            // Rejected: nobody will ever complete the future, so it must not stay in the map
+                            map.remove(key, created);
+                            created.completeExceptionally(e);
+                            throw e;
+                        }
+                        return created.copy();
+                    }
+                }
+                if (future.isCompletedExceptionally()) {
+                    map.remove(key, future);
+                    continue;
+                }
+                if (future.isDone()) {
+                    hits.increment();
+                } else {
+                    deduplicatedLoads.increment();
+                }
+                // A copy, so that callers completing or cancelling their future don't affect the cached one
+                return future.copy();
+            }
+        }
+
+        // The drop-in replacement for ConcurrentHashMap.putIfAbsent, which also counts the discarded values. It never
+        // waits for a load: a load still in flight is settled with the given value, and a failed one is replaced.
+        public V putIfAbsent(K key, V value) {
+            Objects.requireNonNull(value);
+            CompletableFuture<V> inserted = CompletableFuture.completedFuture(value);
+            while (true) {
+                CompletableFuture<V> previous = map.putIfAbsent(key, inserted);
+                if (previous == null) {
+                    return null;
+                }
+                if (!previous.isDone()) {
+                    if (previous.complete(value)) {
+                        return null;
+                    }
+                } else if (previous.isCompletedExceptionally()) {
+                    if (map.replace(key, previous, inserted)) {
+                        return null;
+                    }
+                } else {
+                    wastedConstructions.increment();
+                    return previous.join();
+                }
+            }
+        }
+
+        // Returns the value if it is cached and already loaded, otherwise null
+        public V getIfPresent(K key) {
+            CompletableFuture<V> future = map.get(key);
+            if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+                hits.increment();
+                return future.join();
+            }
+            return null;
+        }
+
+        public void invalidate(K key) {
+            map.remove(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        // If putIfAbsent() settled the future in the meantime, its value wins, so that all callers see the same one,
+        // and the loaded value counts as a wasted construction
+        private V load(K key, CompletableFuture<V> future, Function<? super K, ? extends V> loader) {
+            V value;
+            try {
+                value = Objects.requireNonNull(loader.apply(key), "loader returned null");
+            } catch (RuntimeException | Error e) {
+                if (future.completeExceptionally(e)) {
+                    map.remove(key, future);
+                    throw e;
+                }
+                return future.join();
+            }
+            if (!future.complete(value)) {
+                wastedConstructions.increment();
+            }
+            return future.join();
+        }
+
+        // Rethrows the loader's own exception rather than the CompletionException wrapping it
+        private static <V> V join(CompletableFuture<V> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        public long getHitCount() {
+            return hits.sum();
+        }
+
+        public long getMissCount() {
+            return misses.sum();
+        }
+
+        public long getDeduplicatedLoadCount() {
+            return deduplicatedLoads.sum();
+        }
+
+        public long getWastedConstructionCount() {
+            return wastedConstructions.sum();
+        }
+
+        public double getHitRate() {
+            long hitCount = hits.sum() + deduplicatedLoads.sum();
+            long requests = hitCount + misses.sum();
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+    }
+
+    // The example from Section 63.2, without the race to handle by hand:
+    ConcurrentCache<Integer, SomeObject> cache = new ConcurrentCache<>();
+
+    SomeObject value = cache.get(1, key -> new SomeObject()); // constructed only if nobody mapped key = 1 before
+
+
+    // A bounded cache
+
+    // ConcurrentHashMap, and ConcurrentCache above, never forget anything: a map that is used as a cache keeps every
+    // key it has ever seen, which is exactly the accumulation leak described in Section 130.6 (Pitfall: memory leaks).
+    // A cache needs a bound, and then a policy that decides what to throw away. BoundedCache does this with the
+    // W-TinyLFU policy:
+    // * New entries go into a small LRU "window" (1% of the capacity), so that bursts of new keys are kept for a while.
+    // * Entries falling out of the window are candidates for the main area, a segmented LRU with a probation and a
+    //   protected (80%) segment: entries accessed again while on probation are promoted to the protected segment.
+    // * When the cache is full, a candidate from the window competes with the least recently used entry on probation,
+    //   and the one that was used less often is evicted. How often a key was used is estimated by a count-min sketch:
+    //   four 4-bit counters per key in a long[] table, halved after every 10 * capacity increments, so that the
+    //   estimate follows changes in popularity. This keeps one-hit wonders from pushing out entries that are used
+    //   all the time, which is what a plain LRU does.
+
+    // The policy's lists are not thread-safe and are only changed while holding the eviction lock, but reads never
+    // take it. A read only records the accessed entry in one of a few small ring buffers (chosen by the reading
+    // thread, so that readers don't fight over the same one), and whoever holds the lock later replays them. These
+    // buffers are allowed to drop accesses when they are full: the policy only needs a good sample. Writes are queued
+    // too, and are applied by the thread that gets the lock with tryLock(), so a writer never waits for another one;
+    // this means the cache may go over its bounds for a moment, until the queued writes are applied.
+
+    // Entries can also expire a fixed time after they were written or last read. Expired entries are never returned,
+    // and are removed when a read runs into them or when they reach the head of the policy's lists. Evicted entries
+    // are passed to an eviction listener on an executor, so slow listeners don't hold up the cache.
+    import java.time.Duration;
+    import java.util.concurrent.ConcurrentLinkedQueue;
+    import java.util.concurrent.Executor;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.atomic.AtomicLong;
+    import java.util.concurrent.atomic.AtomicReferenceArray;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.concurrent.locks.ReentrantLock;
+    import java.util.function.Consumer;
+    import java.util.function.Function;
+
+    public final class BoundedCache<K, V> {
+
+        public enum EvictionCause { SIZE, EXPIRED }
+
+        @FunctionalInterface
+        public interface EvictionListener<K, V> {
+            void onEviction(K key, V value, EvictionCause cause);
+        }
+
+        @FunctionalInterface
+        public interface Weigher<K, V> {
+            int weigh(K key, V value);
+        }
+
+        private static final double WINDOW_FRACTION = 0.01;
+        private static final double PROTECTED_FRACTION = 0.80;
+
+        private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+
+        private final long maximumSize;
+        private final long maximumWeight;
+        private final Weigher<? super K, ? super V> weigher;
+        private final long expireAfterWriteNanos;
+        private final long expireAfterAccessNanos;
+        private final EvictionListener<? super K, ? super V> listener;
+        private final Executor executor;
+
+        private final ReadBuffer<Node<K, V>>[] readBuffers;
+        private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock evictionLock = new ReentrantLock();
+
+        // Guarded by evictionLock
+        private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+        private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+        private final AccessOrderDeque<K, V> protectedSegment = new AccessOrderDeque<>();
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder evictedWeight = new LongAdder();
+
+        @SuppressWarnings("unchecked")
+        private BoundedCache(Builder<K, V> builder) {
+            this.maximumSize = builder.maximumSize;
+            this.maximumWeight = builder.maximumWeight;
+            this.weigher = builder.weigher;
+            this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+            this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+            this.listener = builder.listener;
+            this.executor = builder.executor;
+            int cpus = Runtime.getRuntime().availableProcessors();
+            this.readBuffers = new ReadBuffer[1 << (32 - Integer.numberOfLeadingZeros(cpus - 1))];
+            for (int i = 0; i < readBuffers.length; i++) {
+                readBuffers[i] = new ReadBuffer<>();
+            }
+            // Starts small and grows with the data, so that a large or weight-only bound doesn't allocate a big table
+            // for a cache that never fills up
+            sketch.ensureCapacity(Math.min(maximumSize, 1024));
+        }
+
+        public static <K, V> Builder<K, V> builder() {
+            return new Builder<>();
+        }
+
+        public V getIfPresent(K key) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                misses.increment();
+                return null;
+            }
+            long now = System.nanoTime();
+            if (hasExpired(node, now)) {
+                expire(node);
+                misses.increment();
+                return null;
+            }
+            if (expireAfterAccessNanos > 0) {
+                node.accessTime = now;
+            }
+            hits.increment();
+            afterRead(node);
+            return node.value;
+        }
+
+        // Two threads missing the same key at the same time may both call the loader. When that is too expensive,
+        // cache CompletableFutures of the values, as ConcurrentCache does.
+        public V get(K key, Function<? super K, ? extends V> loader) {
+            V value = getIfPresent(key);
+            if (value == null) {
+                value = Objects.requireNonNull(loader.apply(key), "loader returned null");
+                V existing = putIfAbsent(key, value);
+                if (existing != null) {
+                    value = existing;
+                }
+            }
+            return value;
+        }
+
+        public void put(K key, V value) {
+            Node<K, V> node = newNode(key, value);
+            Node<K, V> old = data.put(key, node);
+            if (old != null) {
+                old.retired = true;
+            }
+            afterWrite(() -> {
+                if (old != null) {
+                    unlink(old);
+                }
+                add(node);
+            });
+        }
+
+        public V putIfAbsent(K key, V value) {
+            Node<K, V> node = newNode(key, value);
+            while (true) {
+                Node<K, V> existing = data.putIfAbsent(key, node);
+                if (existing == null) {
+                    afterWrite(() -> add(node));
+                    return null;
+                }
+                if (!hasExpired(existing, node.writeTime)) {
+                    afterRead(existing);
+                    return existing.value;
+                }
+                if (data.replace(key, existing, node)) {
+                    existing.retired = true;
+                    recordEviction(existing, EvictionCause.EXPIRED);
+                    afterWrite(() -> {
+                        unlink(existing);
+                        add(node);
+                    });
+                    return null;
+                }
+            }
+        }
+
+        public V remove(K key) {
+            Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            node.retired = true;
+            afterWrite(() -> unlink(node));
+            return node.value;
+        }
+
+        // Applies the recorded reads and writes, and evicts whatever has to go, right now
+        public void cleanUp() {
+            evictionLock.lock();
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            if (!writeBuffer.isEmpty()) {
+                tryMaintenance();
+            }
+        }
+
+        private Node<K, V> newNode(K key, V value) {
+            Objects.requireNonNull(key);
+            Objects.requireNonNull(value);
+            int weight = weigher.weigh(key, value);
+            if (weight < 0) {
+                throw new IllegalArgumentException("negative weight " + weight + " for key " + key);
+            }
+            return new Node<>(key, value, weight, System.nanoTime());
+        }
+
+        private boolean hasExpired(Node<K, V> node, long now) {
+            return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                    || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+        }
+
+        private void expire(Node<K, V> node) {
+            if (data.remove(node.key, node)) {
+                node.retired = true;
+                recordEviction(node, EvictionCause.EXPIRED);
+                afterWrite(() -> unlink(node));
+            }
+        }
+
+        private void recordEviction(Node<K, V> node, EvictionCause cause) {
+            evictions.increment();
+            evictedWeight.add(node.weight);
+            if (listener != null) {
+                executor.execute(() -> listener.onEviction(node.key, node.value, cause));
+            }
+        }
+
+        private void afterRead(Node<K, V> node) {
+            int stripe = Thread.currentThread().hashCode() & (readBuffers.length - 1);
+            if (readBuffers[stripe].offer(node)) {
+                tryMaintenance();
+            }
+        }
+
+        private void afterWrite(Runnable task) {
+            writeBuffer.add(task);
+            tryMaintenance();
+        }
+
+        // If another thread holds the lock, it is left to apply the queued writes. Every thread that ran maintenance
+        // checks for new writes after releasing the lock, so a write queued while it was draining cannot be forgotten.
+        private void tryMaintenance() {
+            do {
+                if (!evictionLock.tryLock()) {
+                    return;
+                }
+                try {
+                    maintenance();
+                } finally {
+                    evictionLock.unlock();
+                }
+            } while (!writeBuffer.isEmpty());
+        }
+
+        // The methods below are only called while holding evictionLock
+
+        private void maintenance() {
+            sketch.ensureCapacity(Math.min(data.size(), maximumSize));
+            for (ReadBuffer<Node<K, V>> readBuffer : readBuffers) {
+                readBuffer.drain(this::onAccess);
+            }
+            Runnable task;
+            while ((task = writeBuffer.poll()) != null) {
+                task.run();
+            }
+            expireEntries();
+            evictEntries();
+        }
+
+        private void add(Node<K, V> node) {
+            if (!node.retired) {
+                sketch.increment(node.key);
+                window.addLast(node);
+            }
+        }
+
+        private void unlink(Node<K, V> node) {
+            if (node.deque != null) {
+                node.deque.remove(node);
+            }
+        }
+
+        private void onAccess(Node<K, V> node) {
+            sketch.increment(node.key);
+            if (node.deque == window || node.deque == protectedSegment) {
+                node.deque.moveToBack(node);
+            } else if (node.deque == probation) {
+                probation.remove(node);
+                protectedSegment.addLast(node);
+                while (exceeds(protectedSegment, PROTECTED_FRACTION)) {
+                    Node<K, V> demoted = protectedSegment.first;
+                    protectedSegment.remove(demoted);
+                    probation.addLast(demoted);
+                }
+            }
+        }
+
+        // Expiry follows the order of the lists, which is the write order only as long as the entries are not read;
+        // an expired entry stuck behind a younger one is still never returned, it just takes longer to be removed
+        private void expireEntries() {
+            if (expireAfterWriteNanos == 0 && expireAfterAccessNanos == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (AccessOrderDeque<K, V> deque : List.of(window, probation, protectedSegment)) {
+                while (deque.first != null && hasExpired(deque.first, now)) {
+                    evict(deque.first, EvictionCause.EXPIRED);
+                }
+            }
+        }
+
+        private void evictEntries() {
+            // Entries leaving the window join the probation segment, and become candidates for admission
+            Node<K, V> candidate = null;
+            while (exceeds(window, WINDOW_FRACTION)) {
+                Node<K, V> node = window.first;
+                window.remove(node);
+                probation.addLast(node);
+                if (candidate == null) {
+                    candidate = node;
+                }
+            }
+            while (window.size + probation.size + protectedSegment.size > maximumSize
+                    || window.weight + probation.weight + protectedSegment.weight > maximumWeight) {
+                Node<K, V> victim = probation.first != null ? probation.first
+                        : protectedSegment.first != null ? protectedSegment.first : window.first;
+                if (candidate == null || candidate == victim) {
+                    if (candidate == victim) {
+                        candidate = candidate.next;
+                    }
+                    evict(victim, EvictionCause.SIZE);
+                } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    evict(victim, EvictionCause.SIZE);
+                } else {
+                    Node<K, V> next = candidate.next;
+                    evict(candidate, EvictionCause.SIZE);
+                    candidate = next;
+                }
+            }
+        }
+
+        private boolean exceeds(AccessOrderDeque<K, V> deque, double fraction) {
+            return deque.size > Math.max(1, (long) (maximumSize * fraction))
+                    || deque.weight > Math.max(1, (long) (maximumWeight * fraction));
+        }
+
+        private void evict(Node<K, V> node, EvictionCause cause) {
+            node.deque.remove(node);
+            // Fails if the entry was replaced or removed in the meantime; then it is not an eviction
+            if (data.remove(node.key, node)) {
+                node.retired = true;
+                recordEviction(node, cause);
+            }
+        }
+
+        // Metrics
+
+        public long getHitCount() {
+            return hits.sum();
+        }
+
+        public long getMissCount() {
+            return misses.sum();
+        }
+
+        public double getHitRate() {
+            long hitCount = hits.sum();
+            long requests = hitCount + misses.sum();
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+
+        public long getEvictionCount() {
+            return evictions.sum();
+        }
+
+        public long getEvictedWeight() {
+            return evictedWeight.sum();
+        }
+
+        public long estimatedSize() {
+            return data.size();
+        }
+
+        public long weightedSize() {
+            evictionLock.lock();
+            try {
+                return window.weight + probation.weight + protectedSegment.weight;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Entries are immutable: put() replaces the node, which keeps the policy's bookkeeping simple
+        private static final class Node<K, V> {
+            final K key;
+            final V value;
+            final int weight;
+            final long writeTime;
+            volatile long accessTime;
+            volatile boolean retired; // no longer in the map
+
+            // Guarded by evictionLock
+            AccessOrderDeque<K, V> deque;
+            Node<K, V> prev;
+            Node<K, V> next;
+
+            Node(K key, V value, int weight, long now) {
+                this.key = key;
+                this.value = value;
+                this.weight = weight;
+                this.writeTime = now;
+                this.accessTime = now;
+            }
+        }
+
+        // A doubly linked list through the nodes, least recently used first
+        private static final class AccessOrderDeque<K, V> {
+            Node<K, V> first;
+            Node<K, V> last;
+            long size;
+            long weight;
+
+            void addLast(Node<K, V> node) {
+                node.deque = this;
+                node.prev = last;
+                node.next = null;
+                if (last == null) {
+                    first = node;
+                } else {
+                    last.next = node;
+                }
+                last = node;
+                size++;
+                weight += node.weight;
+            }
+
+            void remove(Node<K, V> node) {
+                if (node.prev == null) {
+                    first = node.next;
+                } else {
+                    node.prev.next = node.next;
+                }
+                if (node.next == null) {
+                    last = node.prev;
+                } else {
+                    node.next.prev = node.prev;
+                }
+                node.deque = null;
+                node.prev = null;
+                node.next = null;
+                size--;
+                weight -= node.weight;
+            }
+
+            void moveToBack(Node<K, V> node) {
+                if (node != last) {
+                    remove(node);
+                    addLast(node);
+                }
+            }
+        }
+
+        // A lossy ring buffer: readers claim a slot with a CAS, and simply drop the access if the buffer is full or
+        // another reader of the same stripe won the race
+        private static final class ReadBuffer<E> {
+            private static final int SIZE = 16;
+
+            private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(SIZE);
+            private final AtomicLong writeCounter = new AtomicLong();
+            private volatile long readCounter; // only written while holding evictionLock
+
+            // Returns true if the buffer is full and should be drained
+            boolean offer(E element) {
+                long head = readCounter;
+                long tail = writeCounter.get();
+                if (tail - head >= SIZE) {
+                    return true;
+                }
+                if (writeCounter.compareAndSet(tail, tail + 1)) {
+                    slots.lazySet((int) tail & (SIZE - 1), element);
+                    return tail + 1 - head >= SIZE;
+                }
+                return false;
+            }
+
+            void drain(Consumer<E> consumer) {
+                long head = readCounter;
+                long tail = writeCounter.get();
+                for (; head < tail; head++) {
+                    int index = (int) head & (SIZE - 1);
+                    E element = slots.get(index);
+                    if (element == null) {
+                        break; // claimed, but not written yet
+                    }
+                    slots.lazySet(index, null);
+                    consumer.accept(element);
+                }
+                readCounter = head;
+            }
+        }
+
+        // Count-min sketch with four 4-bit counters per key, sixteen counters in every long
+        private static final class FrequencySketch {
+            private static final long[] SEEDS = {
+                    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+            private static final long RESET_MASK = 0x7777777777777777L;
+            private static final int MAXIMUM_CAPACITY = 1 << 26;
+
+            private long[] table = new long[0];
+            private int sampleSize;
+            private int additions;
+
+            void ensureCapacity(long expectedEntries) {
+                int capacity = (int) Math.min(Math.max(expectedEntries, 16), MAXIMUM_CAPACITY);
+                capacity = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+                if (table.length < capacity) {
+                    table = new long[capacity];
+                    sampleSize = 10 * capacity;
+                    additions = 0;
+                }
+            }
+
+            int frequency(Object key) {
+                int hash = spread(key.hashCode());
+                int start = (hash & 3) << 2;
+                int frequency = 15;
+                for (int i = 0; i < 4; i++) {
+                    long counter = (table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xF;
+                    frequency = Math.min(frequency, (int) counter);
+                }
+                return frequency;
+            }
+
+            void increment(Object key) {
+                int hash = spread(key.hashCode());
+                int start = (hash & 3) << 2;
+                boolean added = false;
+                for (int i = 0; i < 4; i++) {
+                    int index = indexOf(hash, i);
+                    int offset = (start + i) << 2;
+                    if (((table[index] >>> offset) & 0xF) != 0xF) {
+                        table[index] += 1L << offset;
+                        added = true;
+                    }
+                }
+                if (added && ++additions == sampleSize) {
+                    reset();
+                }
+            }
+
+            // Halves every counter, so that keys that were popular a long time ago fade out
+            private void reset() {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+
+            private int indexOf(int hash, int i) {
+                long h = (hash + SEEDS[i]) * SEEDS[i];
+                h += h >>> 32;
+                return (int) h & (table.length - 1);
+            }
+
+            private static int spread(int x) {
+                x = ((x >>> 16) ^ x) * 0x45d9f3b;
+                x = ((x >>> 16) ^ x) * 0x45d9f3b;
+                return (x >>> 16) ^ x;
+            }
+        }
+
+        public static final class Builder<K, V> {
+            private long maximumSize = Long.MAX_VALUE;
+            private long maximumWeight = Long.MAX_VALUE;
+            private Weigher<? super K, ? super V> weigher = (key, value) -> 1;
+            private long expireAfterWriteNanos;
+            private long expireAfterAccessNanos;
+            private EvictionListener<? super K, ? super V> listener;
+            private Executor executor = ForkJoinPool.commonPool();
+
+            private Builder() {
+            }
+
+            public Builder<K, V> maximumSize(long maximumSize) {
+                if (maximumSize < 0) {
+                    throw new IllegalArgumentException("maximumSize: " + maximumSize);
+                }
+                this.maximumSize = maximumSize;
+                return this;
+            }
+
+            public Builder<K, V> maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+                if (maximumWeight < 0) {
+                    throw new IllegalArgumentException("maximumWeight: " + maximumWeight);
+                }
+                this.maximumWeight = maximumWeight;
+                this.weigher = Objects.requireNonNull(weigher);
+                return this;
+            }
+
+            public Builder<K, V> expireAfterWrite(Duration duration) {
+                this.expireAfterWriteNanos = duration.toNanos();
+                return this;
+            }
+
+            public Builder<K, V> expireAfterAccess(Duration duration) {
+                this.expireAfterAccessNanos = duration.toNanos();
+                return this;
+            }
+
+            public Builder<K, V> evictionListener(EvictionListener<? super K, ? super V> listener) {
+                return evictionListener(listener, ForkJoinPool.commonPool());
+            }
+
+            public Builder<K, V> evictionListener(EvictionListener<? super K, ? super V> listener, Executor executor) {
+                this.listener = Objects.requireNonNull(listener);
+                this.executor = Objects.requireNonNull(executor);
+                return this;
+            }
+
+            public BoundedCache<K, V> build() {
+                if (maximumSize == Long.MAX_VALUE && maximumWeight == Long.MAX_VALUE) {
+                    throw new IllegalStateException("a bounded cache needs a maximumSize or a maximumWeight");
+                }
+                return new BoundedCache<>(this);
+            }
+        }
+    }
+
+    // Bounded both by the number of entries and by the memory used by the values:
+    BoundedCache<String, byte[]> thumbnails = BoundedCache.<String, byte[]>builder()
+            .maximumSize(100_000)
+            .maximumWeight(256L * 1024 * 1024, (key, bytes) -> bytes.length)
+            .expireAfterAccess(Duration.ofMinutes(10))
+            .evictionListener((key, bytes, cause) -> System.out.println("evicted " + key + " (" + cause + ")"))
+            .build();
+
+    byte[] thumbnail = thumbnails.get("cat.png", key -> new byte[64 * 1024]); // stands in for rendering the thumbnail
+
+    // Compare the hit rate and the evictions with the traffic before changing the bounds:
+    System.out.printf("hit rate %.2f%%, %d evictions (%d bytes)%n", thumbnails.getHitRate() * 100,
+            thumbnails.getEvictionCount(), thumbnails.getEvictedWeight());
+
+
+    // Ring buffers between pipeline threads
+
+    // ModifierRunnable and IteratorRunnable in ThreadSafeAndConcurrent share a CopyOnWriteArrayList, so every add()
+    // copies the whole array and the iterator keeps summing everything from the start. What the two threads really
+    // have is a producer handing values to a consumer. A bounded ring buffer does that without any copying or
+    // allocation: an array whose slots are reused lap after lap, a tail counter only the producers advance and a head
+    // counter only the consumer advances. A full buffer pushes back on the producer instead of growing.
+
+    // * LongRingBuffer keeps primitive longs. Every slot has its own sequence number (as in Dmitry Vyukov's bounded
+    //   queue), which tells whether the slot is free for a producer (sequence == position) or holds a published value
+    //   (sequence == position + 1); after consuming, the consumer sets it to position + capacity, freeing it for the
+    //   next lap.
+    // * RingBuffer<E> keeps references, and a null slot means free.
+    // Both come as singleProducer (the tail is advanced with a plain release store) and multiProducer (producers claim
+    // positions with a CAS on the tail); there is always a single consumer. The consumer drains in batches: one call
+    // hands over everything that is available, up to a limit.
+
+    // Counters that are written by one thread and read by another are padded to sit alone on their cache line,
+    // otherwise the producer's writes to the tail would keep invalidating the line holding the consumer's head (false
+    // sharing). The JVM may reorder the fields of one class, but it always lays out the fields of a superclass before
+    // those of a subclass, hence the class hierarchy.
+    import java.lang.invoke.MethodHandles;
+    import java.lang.invoke.VarHandle;
+    import java.util.function.Consumer;
+    import java.util.function.LongConsumer;
+    import java.util.concurrent.locks.LockSupport;
+
+    abstract class SequenceLeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    abstract class SequenceValue extends SequenceLeftPadding {
+        volatile long value;
+    }
+
+    final class PaddedSequence extends SequenceValue {
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long get() {
+            return value;
+        }
+
+        // For the thread that owns the counter: nobody else writes it, so no ordering is needed to read it
+        long getPlain() {
+            return (long) VALUE.get(this);
+        }
+
+        long getAcquire() {
+            return (long) VALUE.getAcquire(this);
+        }
+
+        void setRelease(long newValue) {
+            VALUE.setRelease(this, newValue);
+        }
+
+        boolean compareAndSet(long expected, long newValue) {
+            return VALUE.compareAndSet(this, expected, newValue);
+        }
+    }
+
+    // What a thread does while the buffer is full (producer) or empty (consumer). idleCount starts at 0 and counts the
+    // consecutive idle calls. PARK sleeps for growing periods instead of waiting to be unparked, so the other side
+    // never has to know who is waiting; the price is up to a millisecond of latency after a long quiet period.
+    @FunctionalInterface
+    public interface WaitStrategy {
+
+        void idle(int idleCount);
+
+        WaitStrategy BUSY_SPIN = idleCount -> Thread.onSpinWait();
+
+        WaitStrategy YIELD = idleCount -> {
+            if (idleCount < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        };
+
+        WaitStrategy PARK = idleCount -> {
+            if (idleCount < 100) {
+                Thread.onSpinWait();
+            } else if (idleCount < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(1_000L << Math.min(idleCount - 200, 10));
+            }
+        };
+    }
+
+    public final class LongRingBuffer {
+
+        private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long[] values;
+        private final long[] sequences;
+        private final int mask;
+        private final boolean multiProducer;
+        private final PaddedSequence tail = new PaddedSequence();
+        private final PaddedSequence head = new PaddedSequence();
+
+        private LongRingBuffer(int capacity, boolean multiProducer) {
+            if (capacity < 2 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity: " + capacity);
+            }
+            capacity = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+            this.values = new long[capacity];
+            this.sequences = new long[capacity];
+            for (int i = 0; i < capacity; i++) {
+                sequences[i] = i;
+            }
+            this.mask = capacity - 1;
+            this.multiProducer = multiProducer;
+        }
+
+        public static LongRingBuffer singleProducer(int capacity) {
+            return new LongRingBuffer(capacity, false);
+        }
+
+        public static LongRingBuffer multiProducer(int capacity) {
+            return new LongRingBuffer(capacity, true);
+        }
+
+        // Returns false if the buffer is full
+        public boolean offer(long value) {
+            long position;
+            int index;
+            if (multiProducer) {
+                while (true) {
+                    position = tail.getAcquire();
+                    index = (int) position & mask;
+                    long sequence = (long) SEQUENCES.getAcquire(sequences, index);
+                    if (sequence < position) {
+                        return false; // the slot still holds the value from one lap ago
+                    }
+                    if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                }
+            } else {
+                position = tail.getPlain();
+                index = (int) position & mask;
+                if ((long) SEQUENCES.getAcquire(sequences, index) != position) {
+                    return false;
+                }
+                tail.setRelease(position + 1);
+            }
+            values[index] = value;
+            SEQUENCES.setRelease(sequences, index, position + 1);
+            return true;
+        }
+
+        public void put(long value, WaitStrategy waitStrategy) {
+            for (int idleCount = 0; !offer(value); idleCount = Math.min(idleCount + 1, Integer.MAX_VALUE - 1)) {
+                waitStrategy.idle(idleCount);
+            }
+        }
+
+        // Only for the consumer thread: passes up to limit values to the consumer, and returns how many it passed
+        public int drain(LongConsumer consumer, int limit) {
+            long position = head.getPlain();
+            int drained = 0;
+            while (drained < limit) {
+                int index = (int) position & mask;
+                if ((long) SEQUENCES.getAcquire(sequences, index) != position + 1) {
+                    break;
+                }
+                consumer.accept(values[index]);
+                SEQUENCES.setRelease(sequences, index, position + values.length);
+                position++;
+                drained++;
+            }
+            if (drained > 0) {
+                head.setRelease(position);
+            }
+            return drained;
+        }
+
+        // Waits until there is at least one value to drain
+        public int drain(LongConsumer consumer, int limit, WaitStrategy waitStrategy) {
+            int drained;
+            for (int idleCount = 0; (drained = drain(consumer, limit)) == 0;
+                    idleCount = Math.min(idleCount + 1, Integer.MAX_VALUE - 1)) {
+                waitStrategy.idle(idleCount);
+            }
+            return drained;
+        }
+
+        public int size() {
+            return (int) Math.max(0, Math.min(tail.get() - head.get(), values.length));
+        }
+
+        public int capacity() {
+            return values.length;
+        }
+    }
+
+    public final class RingBuffer<E> {
+
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+        private final Object[] slots;
+        private final int mask;
+        private final boolean multiProducer;
+        private final PaddedSequence tail = new PaddedSequence();
+        private final PaddedSequence head = new PaddedSequence();
+
+        private RingBuffer(int capacity, boolean multiProducer) {
+            if (capacity < 2 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity: " + capacity);
+            }
+            capacity = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+            this.slots = new Object[capacity];
+            this.mask = capacity - 1;
+            this.multiProducer = multiProducer;
+        }
+
+        public static <E> RingBuffer<E> singleProducer(int capacity) {
+            return new RingBuffer<>(capacity, false);
+        }
+
+        public static <E> RingBuffer<E> multiProducer(int capacity) {
+            return new RingBuffer<>(capacity, true);
+        }
+
+        // Returns false if the buffer is full
+        public boolean offer(E element) {
+            Objects.requireNonNull(element);
+            long position;
+            if (multiProducer) {
+                do {
+                    position = tail.getAcquire();
+                    if (position - head.getAcquire() >= slots.length) {
+                        return false;
+                    }
+                } while (!tail.compareAndSet(position, position + 1));
+            } else {
+                position = tail.getPlain();
+                if (SLOTS.getAcquire(slots, (int) position & mask) != null) {
+                    return false;
+                }
+                tail.setRelease(position + 1);
+            }
+            SLOTS.setRelease(slots, (int) position & mask, element);
+            return true;
+        }
+
+        public void put(E element, WaitStrategy waitStrategy) {
+            for (int idleCount = 0; !offer(element); idleCount = Math.min(idleCount + 1, Integer.MAX_VALUE - 1)) {
+                waitStrategy.idle(idleCount);
+            }
+        }
+
+        // Only for the consumer thread. A position that a producer has claimed but not written yet ends the batch,
+        // even if later positions are already written.
+        @SuppressWarnings("unchecked")
+        public int drain(Consumer<? super E> consumer, int limit) {
+            long position = head.getPlain();
+            int drained = 0;
+            while (drained < limit) {
+                int index = (int) position & mask;
+                Object element = SLOTS.getAcquire(slots, index);
+                if (element == null) {
+                    break;
+                }
+                SLOTS.setRelease(slots, index, null);
+                consumer.accept((E) element);
+                position++;
+                drained++;
+            }
+            if (drained > 0) {
+                head.setRelease(position);
+            }
+            return drained;
+        }
+
+        public int drain(Consumer<? super E> consumer, int limit, WaitStrategy waitStrategy) {
+            int drained;
+            for (int idleCount = 0; (drained = drain(consumer, limit)) == 0;
+                    idleCount = Math.min(idleCount + 1, Integer.MAX_VALUE - 1)) {
+                waitStrategy.idle(idleCount);
+            }
+            return drained;
+        }
+
+        // Only for the consumer thread: returns null if the buffer is empty
+        @SuppressWarnings("unchecked")
+        public E poll() {
+            long position = head.getPlain();
+            int index = (int) position & mask;
+            Object element = SLOTS.getAcquire(slots, index);
+            if (element != null) {
+                SLOTS.setRelease(slots, index, null);
+                head.setRelease(position + 1);
+            }
+            return (E) element;
+        }
+
+        public int size() {
+            return (int) Math.max(0, Math.min(tail.get() - head.get(), slots.length));
+        }
+
+        public int capacity() {
+            return slots.length;
+        }
+    }
+
+    // The modifier/iterator pair from ThreadSafeAndConcurrent as a pipeline: the modifier streams its numbers to the
+    // iterator, which keeps a running total instead of summing the whole list again and again
+    public static final LongRingBuffer PIPE = LongRingBuffer.singleProducer(1024);
+
+    public static final class PipeModifierRunnable implements Runnable {
+        @Override
+        public void run() {
+            for (int i = 0; i < 50000; i++) {
+                PIPE.put(i, WaitStrategy.YIELD);
+            }
+        }
+    }
+
+    public static final class PipeIteratorRunnable implements Runnable {
+        private long total;
+        private final LongConsumer add = value -> total += value;
+
+        @Override
+        public void run() {
+            for (int received = 0; received < 50000; ) {
+                received += PIPE.drain(add, 256, WaitStrategy.PARK);
+            }
+            System.out.println(total);
+        }
+    }
 }